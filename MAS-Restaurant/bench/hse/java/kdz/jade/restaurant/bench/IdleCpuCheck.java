@@ -0,0 +1,60 @@
+package hse.java.kdz.jade.restaurant.bench;
+
+import hse.java.kdz.jade.restaurant.RestaurantSimulationTest;
+import hse.java.kdz.jade.restaurant.tools.AgentDirectory;
+import hse.java.kdz.jade.restaurant.tools.AgentTools;
+import hse.java.kdz.jade.restaurant.tools.DataParser;
+import jade.core.AID;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+
+/**
+ * Проверка потребления процессора простаивающей кухней.
+ * Запускает симуляцию на копии входных файлов без посетителей (симуляция без посетителей не завершается),
+ * дожидается создания агентов ресторана и измеряет процессорное время JVM за интервал простоя.
+ * Завершается с кодом 1, если доля процессорного времени от длительности интервала превышает порог
+ * (занятые ожиданием поведения агентов загружают ядро полностью, то есть дают долю около 1).
+ * Аргументы командной строки: папка со входными файлами (по умолчанию ../input),
+ * длительность интервала в секундах (по умолчанию 10) и порог доли процессорного времени (по умолчанию 0.05)
+ */
+public class IdleCpuCheck {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String inputPath = args.length > 0 ? args[0] : "../input";
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        double maxCpuShare = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+        Path idleInput = Files.createTempDirectory("idle-input");
+        for (var file : Objects.requireNonNull(new File(inputPath).listFiles())) {
+            Files.copy(file.toPath(), idleInput.resolve(file.getName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.writeString(idleInput.resolve("visitors_orders.json"), "{\"visitors_orders\": []}", StandardCharsets.UTF_8);
+        Path options = idleInput.resolve("options.json");
+        Files.writeString(options, Files.readString(options, StandardCharsets.UTF_8)
+                .replaceAll("\"LOAD_GENERATOR_VISITORS\": *\\d+", "\"LOAD_GENERATOR_VISITORS\": 0"), StandardCharsets.UTF_8);
+
+        RestaurantSimulationTest.setInput(idleInput.toString(), true);
+        new File(RestaurantSimulationTest.getOutputPath()).mkdirs();
+        DataParser.Data.init();
+        AgentTools.startSimulation();
+        // Агент супервизора создается последним из агентов ресторана, после него - только пулы и пауза перед открытием
+        AID[] supervisor;
+        while ((supervisor = AgentDirectory.lookup("Supervisor")) == null || supervisor.length == 0) {
+            Thread.sleep(250);
+        }
+        Thread.sleep(5000);
+
+        long cpuStarted = AgentTools.getProcessCpuTime();
+        long started = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double cpuShare = (double) (AgentTools.getProcessCpuTime() - cpuStarted) / (System.nanoTime() - started);
+        System.out.printf("простой кухни: процессорное время %.3f с. за %d с. (доля %.3f, порог %.3f)%n",
+                cpuShare * seconds, seconds, cpuShare, maxCpuShare);
+        System.exit(cpuShare <= maxCpuShare ? 0 : 1);
+    }
+}
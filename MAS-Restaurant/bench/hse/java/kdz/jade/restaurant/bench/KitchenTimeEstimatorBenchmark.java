@@ -0,0 +1,134 @@
+package hse.java.kdz.jade.restaurant.bench;
+
+import com.sun.management.ThreadMXBean;
+import hse.java.kdz.jade.restaurant.RestaurantSimulationTest;
+import hse.java.kdz.jade.restaurant.tools.DataParser;
+import hse.java.kdz.jade.restaurant.tools.KitchenTimeEstimator;
+import hse.java.kdz.jade.restaurant.types.DishCard;
+import hse.java.kdz.jade.restaurant.types.Operation;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.SIMULATION_DECELERATION_FACTOR;
+
+/**
+ * Бенчмарк оценщика времени работы кухни.
+ * Сравнивает расчет времени цепочки из 10, 100 и 1000 блюд в KitchenTimeEstimator и в прежней реализации
+ * MenuAgent.calculateDishesTime на списках (копия резерваций и полная сортировка после каждого блюда).
+ * Прежняя реализация выполняет операции блюда последовательно, поэтому цепочки составляются из карточек
+ * без параллельных этапов, и для них результаты обеих реализаций должны совпадать.
+ * Аргументы командной строки: папка со входными файлами (по умолчанию ../input)
+ */
+public class KitchenTimeEstimatorBenchmark {
+    public static void main(String[] args) {
+        RestaurantSimulationTest.setInput(args.length > 0 ? args[0] : "../input", true);
+        Random rand = new Random(1);
+        ArrayList<Double> cookTimes = new ArrayList<>();
+        HashMap<Integer, ArrayList<Double>> equipmentTimes = new HashMap<>();
+        KitchenTimeEstimator estimator = new KitchenTimeEstimator();
+        for (int i = 0; i < DataParser.Data.cooks.size(); i++) {
+            double time = rand.nextDouble() * 5000;
+            cookTimes.add(time);
+            estimator.addCookTime(time);
+        }
+        for (var equipment : DataParser.Data.equipments) {
+            double time = rand.nextDouble() * 5000;
+            equipmentTimes.computeIfAbsent(equipment.getType(), k -> new ArrayList<>()).add(time);
+            estimator.addEquipmentTime(equipment.getType(), time);
+        }
+        cookTimes.sort(Comparator.naturalOrder());
+        for (var times : equipmentTimes.values()) {
+            times.sort(Comparator.naturalOrder());
+        }
+        ArrayList<DishCard> sequentialDishCards = new ArrayList<>();
+        for (var dishCard : DataParser.Data.dishCards) {
+            if (dishCard.getOperations().stream().allMatch(operation -> operation.getAsyncPoint() == 0)) {
+                sequentialDishCards.add(dishCard);
+            }
+        }
+
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadID = Thread.currentThread().getId();
+        for (int dishesCount : new int[]{10, 100, 1000}) {
+            ArrayList<DishCard> dishCards = new ArrayList<>();
+            for (int i = 0; i < dishesCount; i++) {
+                dishCards.add(sequentialDishCards.get(rand.nextInt(sequentialDishCards.size())));
+            }
+            double listTime = calculateDishesTime(cookTimes, equipmentTimes, dishCards);
+            double heapTime = estimator.calculateDishesTime(dishCards);
+            int iterationsCount = 2_000_000 / dishesCount;
+            double sink = 0;
+            for (int warmup = 0; warmup < 3; warmup++) {
+                for (int i = 0; i < iterationsCount; i++) {
+                    sink += calculateDishesTime(cookTimes, equipmentTimes, dishCards);
+                    sink += estimator.calculateDishesTime(dishCards);
+                }
+            }
+            long listBytes = threadMXBean.getThreadAllocatedBytes(threadID);
+            long listStarted = System.nanoTime();
+            for (int i = 0; i < iterationsCount; i++) {
+                sink += calculateDishesTime(cookTimes, equipmentTimes, dishCards);
+            }
+            long heapStarted = System.nanoTime();
+            long heapBytes = threadMXBean.getThreadAllocatedBytes(threadID);
+            for (int i = 0; i < iterationsCount; i++) {
+                sink += estimator.calculateDishesTime(dishCards);
+            }
+            long heapEnded = System.nanoTime();
+            long endBytes = threadMXBean.getThreadAllocatedBytes(threadID);
+            System.out.printf("блюд: %4d | списки %9.2f мкс, %7d Б/расчет | кучи %8.2f мкс, %4d Б/расчет | результаты %s%n",
+                    dishesCount, (heapStarted - listStarted) / 1e3 / iterationsCount, (heapBytes - listBytes) / iterationsCount,
+                    (heapEnded - heapStarted) / 1e3 / iterationsCount, (endBytes - heapBytes) / iterationsCount,
+                    Math.abs(listTime - heapTime) < 1e-6 && sink > 0 ? "совпадают" : "РАЗЛИЧАЮТСЯ");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Прежняя реализация расчёта общего времени приготовления цепочки из блюд (MenuAgent.calculateDishesTime)
+     * @param cookReservationTimes - отсортированные времена резервации поваров
+     * @param equipmentReservationTimes - отсортированные времена резервации оборудования по типам
+     * @param dishCards - массив карточек блюд
+     * @return - рассчитанное время
+     */
+    private static double calculateDishesTime(ArrayList<Double> cookReservationTimes,
+                                              HashMap<Integer, ArrayList<Double>> equipmentReservationTimes,
+                                              List<DishCard> dishCards) {
+        ArrayList<Double> cookTimes = new ArrayList<>(cookReservationTimes);
+        HashMap<Integer, ArrayList<Double>> equipmentTimes = new HashMap<>();
+        for (var entry : equipmentReservationTimes.entrySet()) {
+            equipmentTimes.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        ArrayList<Double> totalTimes = new ArrayList<>();
+        for (int i = 0; i < dishCards.size(); i++) {
+            List<Operation> operations = dishCards.get(i).getOperations();
+            for (int j = 0; j < operations.size(); j++) {
+                Operation operation = operations.get(j);
+                double operationTime = operation.getTime() * SIMULATION_DECELERATION_FACTOR;
+                double equipmentTime = operation.getEquipmentType() == -1 ? 0 : equipmentTimes.get(operation.getEquipmentType()).get(0);
+                if (j == 0) {
+                    totalTimes.add(Math.max(cookTimes.get(0), equipmentTime) + operationTime);
+                } else {
+                    double waitingTime = Math.max(0, equipmentTime - totalTimes.get(i));
+                    totalTimes.set(i, totalTimes.get(i) + waitingTime + operationTime);
+                }
+                cookTimes.set(0, cookTimes.get(0) + operationTime);
+                if (operation.getEquipmentType() != -1) {
+                    ArrayList<Double> times = equipmentTimes.get(operation.getEquipmentType());
+                    times.set(0, times.get(0) + operationTime);
+                }
+            }
+            cookTimes.sort(Comparator.naturalOrder());
+            for (var times : equipmentTimes.values()) {
+                times.sort(Comparator.naturalOrder());
+            }
+        }
+        return Collections.max(totalTimes);
+    }
+}
@@ -0,0 +1,102 @@
+package hse.java.kdz.jade.restaurant.bench;
+
+import hse.java.kdz.jade.restaurant.RestaurantSimulationTest;
+import hse.java.kdz.jade.restaurant.tools.DataParser;
+import hse.java.kdz.jade.restaurant.tools.MessageCodec;
+import hse.java.kdz.jade.restaurant.types.DishData;
+import hse.java.kdz.jade.restaurant.types.MenuDish;
+import hse.java.kdz.jade.restaurant.types.Operation;
+import hse.java.kdz.jade.restaurant.types.VisitorOrderedDish;
+import jade.core.AID;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Бенчмарк кодека сообщений.
+ * Для типичных содержимых сообщений агентов сравнивает размер и время кодирования и декодирования
+ * MessageCodec и стандартной сериализации Java (ACLMessage.setContentObject).
+ * Аргументы командной строки: папка со входными файлами (по умолчанию ../input)
+ * и количество итераций замера (по умолчанию 20000)
+ */
+public class MessageCodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        RestaurantSimulationTest.setInput(args.length > 0 ? args[0] : "../input", true);
+        int iterationsCount = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        ArrayList<DishData> dishesData = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            dishesData.add(new DishData(DataParser.Data.dishCards.get(i % DataParser.Data.dishCards.size()),
+                    new AID(String.format("DishAgent[%d, order:%d]@127.0.0.1:8859/JADE", i, i), AID.ISGUID), i + 1));
+        }
+        ArrayList<MenuDish> menuDishes = new ArrayList<>(DataParser.Data.menuDishes);
+        ArrayList<Operation> operations = new ArrayList<>(DataParser.Data.dishCards.get(0).getOperations());
+        ArrayList<VisitorOrderedDish> visitorOrderedDishes = DataParser.Data.visitorOrders.get(0).getDishes();
+        Object[][] payloads = {
+                {"DishData x" + dishesData.size(), dishesData},
+                {"MenuDish x" + menuDishes.size(), menuDishes},
+                {"Operation x" + operations.size(), operations},
+                {"VisitorOrderedDish x" + visitorOrderedDishes.size(), visitorOrderedDishes},
+                {"DishCard", DataParser.Data.dishCards.get(0)},
+                {"OperationProduct", operations.get(0).getProducts().get(0)}
+        };
+
+        for (var payload : payloads) {
+            Serializable object = (Serializable) payload[1];
+            for (int warmup = 0; warmup < 3; warmup++) {
+                for (int i = 0; i < iterationsCount; i++) {
+                    deserialize(serialize(object));
+                    MessageCodec.decode(MessageCodec.encode(object));
+                }
+            }
+            long started = System.nanoTime();
+            for (int i = 0; i < iterationsCount; i++) {
+                serialize(object);
+            }
+            long serialized = System.nanoTime();
+            byte[] javaBytes = serialize(object);
+            for (int i = 0; i < iterationsCount; i++) {
+                deserialize(javaBytes);
+            }
+            long deserialized = System.nanoTime();
+            for (int i = 0; i < iterationsCount; i++) {
+                MessageCodec.encode(object);
+            }
+            long encoded = System.nanoTime();
+            byte[] codecBytes = MessageCodec.encode(object);
+            for (int i = 0; i < iterationsCount; i++) {
+                MessageCodec.decode(codecBytes);
+            }
+            long decoded = System.nanoTime();
+            System.out.printf("%-24s java: %5d Б, кодирование %6.2f мкс, декодирование %6.2f мкс | " +
+                            "кодек: %4d Б, кодирование %5.2f мкс, декодирование %5.2f мкс%n",
+                    payload[0], javaBytes.length, micros(serialized - started, iterationsCount),
+                    micros(deserialized - serialized, iterationsCount), codecBytes.length,
+                    micros(encoded - deserialized, iterationsCount), micros(decoded - encoded, iterationsCount));
+        }
+        System.exit(0);
+    }
+
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    private static double micros(long nanos, int iterationsCount) {
+        return nanos / 1e3 / iterationsCount;
+    }
+}
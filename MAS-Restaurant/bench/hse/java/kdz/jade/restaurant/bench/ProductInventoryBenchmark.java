@@ -0,0 +1,170 @@
+package hse.java.kdz.jade.restaurant.bench;
+
+import hse.java.kdz.jade.restaurant.tools.ProductInventory;
+import hse.java.kdz.jade.restaurant.types.Product;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Бенчмарк индекса продуктов склада.
+ * Сравнивает проверку наличия и резервацию с последующим возвратом в ProductInventory
+ * и в прежней реализации WarehouseAgent, перебиравшей весь список продуктов склада.
+ * Склад заполняется случайными партиями, запросы - случайными типами и количествами;
+ * после замера проверяется, что обе реализации дают одинаковые результаты.
+ * Аргументы командной строки: количество продуктов (по умолчанию 10000), количество типов (по умолчанию 500)
+ * и количество запросов (по умолчанию 200000)
+ */
+public class ProductInventoryBenchmark {
+    public static void main(String[] args) {
+        int productsCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int typesCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int requestsCount = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        ArrayList<Product> listProducts = createProducts(productsCount, typesCount);
+        ProductInventory inventory = new ProductInventory(createProducts(productsCount, typesCount));
+        Random rand = new Random(3);
+        int[] types = new int[requestsCount];
+        double[] quantities = new double[requestsCount];
+        for (int i = 0; i < requestsCount; i++) {
+            types[i] = rand.nextInt(typesCount);
+            quantities[i] = 1 + rand.nextInt(150);
+        }
+
+        double sink = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            for (int i = 0; i < requestsCount; i++) {
+                sink += getAvailableQuantity(listProducts, types[i]);
+                sink += inventory.getAvailableQuantity(types[i]);
+            }
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < requestsCount; i++) {
+            sink += getAvailableQuantity(listProducts, types[i]);
+        }
+        long listChecked = System.nanoTime();
+        for (int i = 0; i < requestsCount; i++) {
+            sink += inventory.getAvailableQuantity(types[i]);
+        }
+        long inventoryChecked = System.nanoTime();
+        System.out.printf("проверка наличия:     список %8.3f мкс | индекс %8.3f мкс%n",
+                (listChecked - started) / 1e3 / requestsCount, (inventoryChecked - listChecked) / 1e3 / requestsCount);
+
+        for (int warmup = 0; warmup < 2; warmup++) {
+            for (int i = 0; i < requestsCount; i++) {
+                reserveAndRelease(listProducts, types[i], quantities[i]);
+                reserveAndRelease(inventory, types[i], quantities[i]);
+            }
+        }
+        started = System.nanoTime();
+        for (int i = 0; i < requestsCount; i++) {
+            reserveAndRelease(listProducts, types[i], quantities[i]);
+        }
+        long listReserved = System.nanoTime();
+        for (int i = 0; i < requestsCount; i++) {
+            reserveAndRelease(inventory, types[i], quantities[i]);
+        }
+        long inventoryReserved = System.nanoTime();
+        System.out.printf("резервация и возврат: список %8.3f мкс | индекс %8.3f мкс%n",
+                (listReserved - started) / 1e3 / requestsCount, (inventoryReserved - listReserved) / 1e3 / requestsCount);
+
+        int mismatchesCount = 0;
+        for (int i = 0; i < Math.min(requestsCount, 5000); i++) {
+            if ((reserve(listProducts, types[i], quantities[i]) == null) != (inventory.reserve(types[i], quantities[i]) == null)) {
+                mismatchesCount++;
+            }
+        }
+        for (int type = 0; type < typesCount; type++) {
+            if (Math.abs(getAvailableQuantity(listProducts, type) - inventory.getAvailableQuantity(type)) > 1e-6) {
+                mismatchesCount++;
+            }
+        }
+        if (sink == 0) {
+            System.out.println("на складе нет продуктов запрошенных типов");
+        }
+        System.out.printf("расхождений результатов: %d%n", mismatchesCount);
+        System.exit(mismatchesCount == 0 ? 0 : 1);
+    }
+
+    private static ArrayList<Product> createProducts(int productsCount, int typesCount) {
+        Random rand = new Random(7);
+        ArrayList<Product> products = new ArrayList<>(productsCount);
+        for (int i = 0; i < productsCount; i++) {
+            products.add(new Product(i, rand.nextInt(typesCount), "product", "company", "kg",
+                    1 + rand.nextInt(100), 1, "", ""));
+        }
+        return products;
+    }
+
+    private static void reserveAndRelease(List<Product> products, int productType, double quantity) {
+        Map<Integer, Double> reserved = reserve(products, productType, quantity);
+        if (reserved != null) {
+            for (var product : products) {
+                Double reservedQuantity = reserved.get(product.getId());
+                if (reservedQuantity != null) {
+                    product.addQuantity(reservedQuantity);
+                }
+            }
+        }
+    }
+
+    private static void reserveAndRelease(ProductInventory inventory, int productType, double quantity) {
+        LinkedHashMap<Product, Double> reserved = inventory.reserve(productType, quantity);
+        if (reserved != null) {
+            for (var product : reserved.entrySet()) {
+                inventory.release(product.getKey().getId(), product.getValue());
+            }
+        }
+    }
+
+    /**
+     * Прежняя проверка наличия продукта (WarehouseAgent.reserveProduct в режиме проверки)
+     */
+    private static double getAvailableQuantity(List<Product> products, int productType) {
+        double totalQuantity = 0;
+        for (var product : products) {
+            if (product.getType() == productType && product.getQuantity() > 0) {
+                totalQuantity += product.getQuantity();
+            }
+        }
+        return totalQuantity;
+    }
+
+    /**
+     * Прежняя резервация продукта (WarehouseAgent.reserveProduct): перебор всего списка продуктов
+     * и последовательное опустошение партий нужного типа
+     * @return - списанное количество по id продуктов или null, если на складе недостаточно продукта
+     */
+    private static Map<Integer, Double> reserve(List<Product> products, int productType, double quantity) {
+        double totalQuantity = 0;
+        ArrayList<Product> equalsProducts = new ArrayList<>();
+        for (var product : products) {
+            if (product.getType() == productType && product.getQuantity() > 0) {
+                equalsProducts.add(product);
+                totalQuantity += product.getQuantity();
+            }
+        }
+        if (totalQuantity < quantity) {
+            return null;
+        }
+        LinkedHashMap<Integer, Double> reserved = new LinkedHashMap<>();
+        totalQuantity = 0;
+        for (var product : equalsProducts) {
+            double lastQuantity = product.getQuantity();
+            product.setQuantity(0);
+            totalQuantity += lastQuantity;
+            boolean stop = false;
+            if (totalQuantity > quantity) {
+                product.setQuantity(totalQuantity - quantity);
+                stop = true;
+            }
+            reserved.merge(product.getId(), lastQuantity - product.getQuantity(), Double::sum);
+            if (stop) {
+                break;
+            }
+        }
+        return reserved;
+    }
+}
@@ -0,0 +1,58 @@
+package hse.java.kdz.jade.restaurant.bench;
+
+import hse.java.kdz.jade.restaurant.tools.TimingWheel;
+import jade.core.Timer;
+import jade.core.TimerDispatcher;
+
+import java.util.Random;
+
+/**
+ * Бенчмарк колеса таймеров.
+ * Сравнивает добавление и отмену большого количества ожидающих таймеров
+ * в TimingWheel и в диспетчере таймеров JADE, на котором основан WakerBehaviour.
+ * Задержки таймеров (1-11 минут) заведомо больше времени замера, поэтому ни один таймер не срабатывает.
+ * Аргументы командной строки: количество таймеров (по умолчанию 100000) и количество повторов (по умолчанию 5)
+ */
+public class TimingWheelBenchmark {
+    public static void main(String[] args) {
+        int timersCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int repeatsCount = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Random rand = new Random(1);
+        long[] delays = new long[timersCount];
+        for (int i = 0; i < timersCount; i++) {
+            delays[i] = 60_000 + rand.nextInt(600_000);
+        }
+        System.out.printf("таймеров: %d%n", timersCount);
+        for (int repeat = 0; repeat < repeatsCount; repeat++) {
+            TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[timersCount];
+            long started = System.nanoTime();
+            for (int i = 0; i < timersCount; i++) {
+                timeouts[i] = TimingWheel.schedule(delays[i], () -> {
+                });
+            }
+            long scheduled = System.nanoTime();
+            for (var timeout : timeouts) {
+                timeout.cancel();
+            }
+            long cancelled = System.nanoTime();
+
+            TimerDispatcher timerDispatcher = new TimerDispatcher();
+            Timer[] timers = new Timer[timersCount];
+            long jadeStarted = System.nanoTime();
+            for (int i = 0; i < timersCount; i++) {
+                timers[i] = timerDispatcher.add(new Timer(System.currentTimeMillis() + delays[i], timer -> {
+                }));
+            }
+            long jadeScheduled = System.nanoTime();
+            for (var timer : timers) {
+                timerDispatcher.remove(timer);
+            }
+            long jadeCancelled = System.nanoTime();
+
+            System.out.printf("повтор %d: TimingWheel добавление %d мс, отмена %d мс | TimerDispatcher добавление %d мс, отмена %d мс%n",
+                    repeat + 1, (scheduled - started) / 1_000_000, (cancelled - scheduled) / 1_000_000,
+                    (jadeScheduled - jadeStarted) / 1_000_000, (jadeCancelled - jadeScheduled) / 1_000_000);
+        }
+        System.exit(0);
+    }
+}
@@ -28,6 +28,23 @@ public class RestaurantSimulationTest {
         return optionsFromFile;
     }
 
+    /**
+     * Метод задает входные данные симуляции (до инициализации класса Data)
+     * @param path     - путь до папки со входными json файлами (абсолютный или относительный)
+     * @param fromFile - считать ли настройки симуляции из файла
+     */
+    public static void setInput(String path, boolean fromFile) {
+        inputPath = path;
+        if (!inputPath.startsWith("/")) {
+            inputPath = new File("").getAbsolutePath() + "/" + inputPath;
+        }
+        if (!inputPath.endsWith("/")) {
+            inputPath += "/";
+        }
+        outputPath = "output/";
+        optionsFromFile = fromFile;
+    }
+
     /**
      * Метод - точка входа в программу
      * @param args - аргументы командой строки
@@ -48,15 +65,7 @@ public class RestaurantSimulationTest {
             System.exit(1);
         }
 
-        inputPath = args[0];
-        if (!inputPath.startsWith("/")) {
-            inputPath = new File("").getAbsolutePath() + "/" + inputPath;
-        }
-        if (!inputPath.endsWith("/")) {
-            inputPath += "/";
-        }
-        outputPath = "output/";
-        optionsFromFile = Boolean.parseBoolean(args[1]);
+        setInput(args[0], Boolean.parseBoolean(args[1]));
 
         String fullDirPath = new File("").getAbsolutePath() + "/" + getOutputPath();
         File file = new File(getOutputPath());
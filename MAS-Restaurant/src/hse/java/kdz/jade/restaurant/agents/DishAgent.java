@@ -1,6 +1,8 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.WarehouseRouter;
 import hse.java.kdz.jade.restaurant.types.DishCard;
+import hse.java.kdz.jade.restaurant.types.ProcessTask;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
@@ -8,6 +10,7 @@ import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.calculateRequiredProducts;
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.findDishCardByMenuId;
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.getAndIncrementProcessesCount;
 
@@ -17,8 +20,10 @@ import static hse.java.kdz.jade.restaurant.tools.AgentTools.getAndIncrementProce
  * Поведения агента:
  * 1) Начать готовить блюдо (по запросу от агента супервизора)
  * 2) Отменить приготовление блюда (по запросу от агента супервизора)
- * 3) Сообщить сколько времени осталось до приготовления блюда (по запросу от агента заказа)
- * 4) Сообщить агенту заказа о готовности блюда
+ * 3) Сообщить агенту заказа о готовности блюда
+ * 4) Сообщать агенту супервизора об изменениях статуса блюда
+ * 5) Сообщать агенту заказа о ходе приготовления блюда
+ * 6) Резервировать на складе все продукты блюда при начале его готовки
  */
 public class DishAgent extends RestaurantAgent {
     /**
@@ -28,8 +33,7 @@ public class DishAgent extends RestaurantAgent {
         NOT_COOKING,
         COOKING,
         COOKED,
-        CANCELLED,
-        DELETING
+        CANCELLED
     }
 
     /**
@@ -40,6 +44,18 @@ public class DishAgent extends RestaurantAgent {
      * Id заказа
      */
     private int orderID;
+    /**
+     * Агент заказа, которому принадлежит блюдо
+     */
+    private AID orderAgent;
+    /**
+     * Агент процесса приготовления блюда
+     */
+    private AID processAgent;
+    /**
+     * Id процесса приготовления блюда
+     */
+    private int processID;
     /**
      * Карточка блюда
      */
@@ -48,27 +64,52 @@ public class DishAgent extends RestaurantAgent {
      * Статус приготовления блюда
      */
     private Status status;
-    /**
-     * Приоритет блюда.
-     * Влияет на расчеты алгоритма выбора очередного блюда для готовки.
-     * Исключает ситуации, когда блюда из ранних заказов не готовятся длительное время
-     */
-    private int priority = 1;
 
     @Override
     protected void setup() {
         orderedDishID = (int) getArguments()[0];
         dishCard = findDishCardByMenuId((int) getArguments()[1]);
         orderID = (int) getArguments()[2];
+        orderAgent = (AID) getArguments()[3];
         status = Status.NOT_COOKING;
+        // Регистрация в DF синхронна и при наплыве заказов занимает много времени,
+        // поэтому агент заказа узнает о блюде до неё
+        announce(orderAgent);
         register("Dish", new Property("orderedDishID", orderedDishID), new Property("orderID", orderID));
         report(String.format("был создан для блюда '%s'", dishCard.getName()));
         addBehaviour(new StartCookingBehaviour());
         addBehaviour(new StopCookingBehaviour());
-        addBehaviour(new DishTimeRecognitionBehaviour());
-        addBehaviour(new ManagementBehaviour());
-        addBehaviour(new PriorityIncreasingBehaviour());
+        addBehaviour(new ProcessProgressBehaviour());
         addBehaviour(new DeleteBehaviour());
+        publishState("Waiting");
+    }
+
+    /**
+     * Метод сообщает агенту супервизора об изменении статуса блюда.
+     * Ожидающее блюдо передает свою карточку, чтобы супервизор мог поставить его в очередь на готовку.
+     * О постановке в очередь и начале готовки сообщается также агенту заказа
+     * (об окончании готовки агент заказа узнает из сообщения 'Dish-completion')
+     * @param state - статус блюда ('Waiting', 'Cooking', 'Reserved', 'Cooked', 'Cancelled' или 'Deleted')
+     */
+    private void publishState(String state) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId("Dish-state");
+        msg.setOntology(state);
+        // Протокол - 'id заказа:id блюда в заказе', по нему супервизор учитывает продукты принятых блюд
+        msg.setProtocol(orderID + ":" + orderedDishID);
+        if (state.equals("Waiting")) {
+            setObjectToMsg(msg, dishCard);
+        }
+        if (state.equals("Waiting") || state.equals("Cooking")) {
+            msg.addReceiver(orderAgent);
+        }
+        AID[] supervisorAgent = find("Supervisor");
+        if (supervisorAgent.length > 0) {
+            msg.addReceiver(supervisorAgent[0]);
+        }
+        if (msg.getAllReceiver().hasNext()) {
+            send(msg);
+        }
     }
 
     /**
@@ -86,20 +127,33 @@ public class DishAgent extends RestaurantAgent {
                             MessageTemplate.MatchConversationId("Start-cooking"));
                     ACLMessage msg = receive(mt);
                     if (msg != null) {
+                        if (status != Status.NOT_COOKING) {
+                            step = 3;
+                            break;
+                        }
                         report("начинает процесс приготовления...");
-                        int processesCount = getAndIncrementProcessesCount();
-                        create(String.format("ProcessAgent[%d, dish:%d]", processesCount, orderedDishID), ProcessAgent.class,
-                                dishCard.getOperations(), orderedDishID, dishCard.getId(), processesCount);
+                        addBehaviour(new ProductsReservationBehaviour());
+                        processID = getAndIncrementProcessesCount();
+                        assign("Process", String.format("ProcessAgent[%d, dish:%d]", processID, orderedDishID), ProcessAgent.class,
+                                new ProcessTask(processID, orderedDishID, dishCard.getId(), dishCard.getOperations(), getAID()));
                         step = 1;
                     } else {
                         block();
                     }
                 }
                 case 1 -> {
-                    AID[] processAgent = find("Process", new Property("orderedDishID", orderedDishID));
-                    if (processAgent.length > 0) {
-                        status = Status.COOKING;
+                    ACLMessage msg = receive(announcementTemplate());
+                    if (msg != null) {
+                        processAgent = msg.getSender();
+                        if (status == Status.NOT_COOKING) {
+                            status = Status.COOKING;
+                            publishState("Cooking");
+                        } else {
+                            cancelProcess();
+                        }
                         step = 2;
+                    } else {
+                        block();
                     }
                 }
                 case 2 -> {
@@ -109,20 +163,13 @@ public class DishAgent extends RestaurantAgent {
                     if (reply != null) {
                         report("приготовлено!");
                         status = Status.COOKED;
-                        AID[] orderAgent = find("Order", new Property("orderID", orderID));
-                        if (orderAgent.length > 0) {
-                            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-                            msg.setConversationId("Dish-completion");
-                            msg.setContent(dishCard.getName());
-                            msg.addReceiver(orderAgent[0]);
-                            send(msg);
-                        }
-                        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                        msg.setConversationId("delete");
-                        for (var productAgent : find("Product", new Property("orderedDishID", orderedDishID))) {
-                            msg.addReceiver(productAgent);
-                        }
+                        publishState("Cooked");
+                        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+                        msg.setConversationId("Dish-completion");
+                        msg.setContent(dishCard.getName());
+                        msg.addReceiver(orderAgent);
                         send(msg);
+                        commitProducts(orderedDishID);
                         step = 3;
                     } else {
                         block();
@@ -139,57 +186,84 @@ public class DishAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику остановки приготовления блюда
+     * Поведение описывает логику резервации всех продуктов блюда одним запросом к каждому шарду склада,
+     * которому принадлежат его продукты. Резервация ведется по id заказанного блюда, поэтому продукты
+     * затем списываются или возвращаются на склад вместе (см. commitProducts и releaseProducts).
+     * Когда ответили все шарды, агент супервизора узнает, что продукты блюда зарезервированы (статус 'Reserved')
      */
-    private class StopCookingBehaviour extends Behaviour {
-        private boolean isDone = false;
+    private class ProductsReservationBehaviour extends Behaviour {
+        private int step = 0;
+        private int msgCount = 0;
+        private int repliesCount = 0;
+        private MessageTemplate mt;
 
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                    MessageTemplate.MatchConversationId("Stop-cooking"));
-            ACLMessage msg = receive(mt);
-            if (msg != null) {
-                isDone = true;
-                report("отменяет процесс приготовления блюда...");
-                if (status == Status.COOKING) {
-                    addBehaviour(new CancelProcessBehaviour());
+            switch (step) {
+                case 0 -> {
+                    var partitions = WarehouseRouter.partition(calculateRequiredProducts(dishCard));
+                    for (var partition : partitions.entrySet()) {
+                        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                        msg.addReceiver(findWarehouse(partition.getValue().keySet().iterator().next()));
+                        msg.setConversationId("Bulk-reserving");
+                        msg.setOntology(String.valueOf(orderedDishID));
+                        msg.setReplyWith(String.valueOf(orderedDishID));
+                        msg.setContent(WarehouseRouter.format(partition.getValue()));
+                        send(msg);
+                    }
+                    msgCount = partitions.size();
+                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                            MessageTemplate.MatchConversationId("Bulk-reserving"));
+                    step = 1;
                 }
-                status = Status.CANCELLED;
-                msg = new ACLMessage(ACLMessage.REQUEST);
-                msg.setConversationId("delete");
-                for (var productAgent : find("Product", new Property("orderedDishID", orderedDishID))) {
-                    msg.addReceiver(productAgent);
+                case 1 -> {
+                    if (repliesCount >= msgCount) {
+                        publishState("Reserved");
+                        step = 2;
+                        break;
+                    }
+                    ACLMessage reply = receive(mt);
+                    if (reply != null) {
+                        if ("failure".equals(reply.getContent())) {
+                            report("не все продукты блюда удалось зарезервировать на складе");
+                        }
+                        repliesCount++;
+                    } else {
+                        block();
+                    }
                 }
-                send(msg);
-            } else {
-                block();
             }
         }
 
         @Override
         public boolean done() {
-            return isDone;
+            return step == 2;
         }
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику отмены текущего процесса приготовления в случае,
-     * если агент процесса был уже запущен
+     * Поведение описывает логику остановки приготовления блюда
      */
-    private class CancelProcessBehaviour extends Behaviour {
+    private class StopCookingBehaviour extends Behaviour {
         private boolean isDone = false;
 
         @Override
         public void action() {
-            AID[] processAgent = find("Process", new Property("orderedDishID", orderedDishID));
-            if (processAgent.length > 0) {
-                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                msg.setConversationId("Process-cancellation");
-                msg.addReceiver(processAgent[0]);
-                send(msg);
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Stop-cooking"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
                 isDone = true;
+                report("отменяет процесс приготовления блюда...");
+                if (status == Status.COOKING) {
+                    cancelProcess();
+                }
+                status = Status.CANCELLED;
+                publishState("Cancelled");
+                commitProducts(orderedDishID);
+            } else {
+                block();
             }
         }
 
@@ -200,91 +274,36 @@ public class DishAgent extends RestaurantAgent {
     }
 
     /**
-     * Класс поведения агента.
-     * Поведение описывает логику распознавания оставшегося времени до приготовления блюда
+     * Метод отмены текущего процесса приготовления, если агент процесса был уже запущен
      */
-    private class DishTimeRecognitionBehaviour extends CyclicBehaviour {
-        private int step = 0;
-        ACLMessage reply;
-
-        @Override
-        public void action() {
-            switch (step) {
-                case 0 -> {
-                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Dish-time"));
-                    ACLMessage msg = receive(mt);
-                    if (msg != null) {
-                        reply = msg.createReply();
-                        if (status == Status.CANCELLED || status == Status.COOKED) {
-                            reply.setContent("0");
-                            reply.setOntology("Time");
-                            send(reply);
-                        } else if (status == Status.NOT_COOKING) {
-                            reply.setOntology("DishCard");
-                            setObjectToMsg(reply, dishCard);
-                            send(reply);
-                        } else if (status == Status.COOKING) {
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Process-time");
-                            msg.addReceiver(find("Process", new Property("orderedDishID", orderedDishID))[0]);
-                            send(msg);
-                            step = 1;
-                        }
-                    } else {
-                        block();
-                    }
-                }
-                case 1 -> {
-                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Process-time"));
-                    ACLMessage msg = receive(mt);
-                    if (msg != null) {
-                        reply.setOntology("Time");
-                        reply.setContent(msg.getContent());
-                        send(reply);
-                        step = 0;
-                    } else {
-                        block();
-                    }
-                }
-            }
-        }
+    private void cancelProcess() {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setConversationId("Process-cancellation");
+        msg.setContent(String.valueOf(processID));
+        msg.addReceiver(processAgent);
+        send(msg);
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику взаимодействия с агентом супервизора,
-     * в моменты когда тот актуализирует информацию на кухне для принятия решения
-     * о выборе очередного блюда для готовки
+     * Поведение описывает логику передачи агенту заказа сообщений агента процесса о начале этапов приготовления
      */
-    private class ManagementBehaviour extends CyclicBehaviour {
+    private class ProcessProgressBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                    MessageTemplate.MatchConversationId("Management"));
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Process-progress"));
             ACLMessage msg = receive(mt);
-            if (status == Status.DELETING && find("Supervisor").length == 0) {
-                doDelete();
-            } else if (msg != null) {
-                ACLMessage reply = msg.createReply();
-                if (status == Status.DELETING) {
-                    send(reply);
-                    doDelete();
-                } else if (status == Status.NOT_COOKING) {
-                    reply.setOntology("DishCard");
-                    reply.setProtocol(String.valueOf(priority));
-                    setObjectToMsg(reply, dishCard);
-                    send(reply);
-                } else {
-                    reply.setOntology("Pass");
-                    if (status == Status.COOKING) {
-                        reply.setContent("Cooking");
-                    } else {
-                        reply.setContent("Canceled");
-                    }
-                    send(reply);
+            if (msg != null) {
+                if (status != Status.COOKING || !msg.getSender().equals(processAgent)) {
+                    return;
                 }
+                ACLMessage progress = new ACLMessage(ACLMessage.INFORM);
+                progress.setConversationId("Dish-state");
+                progress.setOntology("Cooking");
+                progress.setContent(msg.getContent());
+                progress.addReceiver(orderAgent);
+                send(progress);
             } else {
                 block();
             }
@@ -293,25 +312,8 @@ public class DishAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику увеличения приоритета блюда
+     * Поведение описывает логику удаления агента
      */
-    private class PriorityIncreasingBehaviour extends CyclicBehaviour {
-        @Override
-        public void action() {
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                    MessageTemplate.MatchConversationId("Increase-priority"));
-            ACLMessage msg = receive(mt);
-            if (msg != null) {
-                if (status == Status.NOT_COOKING) {
-                    priority += Integer.parseInt(msg.getContent());
-                    report("приоритет был изменен. Текущий приоритет " + priority);
-                }
-            } else {
-                block();
-            }
-        }
-    }
-
     private class DeleteBehaviour extends Behaviour {
         private boolean isDone = false;
 
@@ -321,7 +323,10 @@ public class DishAgent extends RestaurantAgent {
                     MessageTemplate.MatchConversationId("delete"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                status = Status.DELETING;
+                if (status == Status.NOT_COOKING || status == Status.COOKING) {
+                    publishState("Deleted");
+                }
+                doDelete();
                 isDone = true;
             } else {
                 block();
@@ -1,6 +1,10 @@
 package hse.java.kdz.jade.restaurant.agents;
 
 import hse.java.kdz.jade.restaurant.tools.DataParser;
+import hse.java.kdz.jade.restaurant.tools.KitchenTimeEstimator;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.TimeEstimateCache;
+import hse.java.kdz.jade.restaurant.tools.WarehouseRouter;
 import hse.java.kdz.jade.restaurant.types.DishCard;
 import hse.java.kdz.jade.restaurant.types.DishData;
 import hse.java.kdz.jade.restaurant.types.MenuDish;
@@ -8,20 +12,22 @@ import hse.java.kdz.jade.restaurant.types.Operation;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
-import jade.core.behaviours.WakerBehaviour;
 import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 
 /**
  * Класс агента меню.
+ * Агент хранит актуальное меню и перепроверяет только те блюда, на которые повлияло изменение
+ * остатков на складе (уведомления от агента склада) или времени резервации ресурсов кухни (уведомления от агентов ресурсов)
  * Поведения агента:
  * 1) Предоставить актуальное меню
  * 2) Рассчитать оставшееся время приготовления цепочки из блюд/операций (по запросу от агента заказа/процесса)
@@ -40,21 +46,72 @@ public class MenuAgent extends RestaurantAgent {
     /**
      * Доступные для приготовления на данный момент блюда из меню
      */
-    private ArrayList<MenuDish> activeMenuDishes;
+    private ArrayList<MenuDish> activeMenuDishes = new ArrayList<>();
     /**
-     * Время, оставшееся до конца резервации каждого отдельного повара
+     * Доступность блюд меню
+     * Ключ - id блюда меню
+     * Значение - находится ли блюдо в меню (блюда, которые еще не проверялись, отсутствуют)
      */
-    private ArrayList<Double> cookReservationTimes;
+    private final HashMap<Integer, Boolean> menuDishesAvailability = new HashMap<>();
     /**
-     * Время, оставшееся до конца резервации каждой отдельной единицы оборудования
-     * Ключ - тип оборудования
-     * Значение - массив времен оборудований заданного типа
+     * Блюда меню, для которых есть все продукты и оборудование, и их карточки.
+     * Для этих блюд при каждом обновлении времени резервации ресурсов пересчитывается время готовки
      */
-    private HashMap<Integer, ArrayList<Double>> equipmentReservationTimes;
+    private final HashMap<MenuDish, DishCard> feasibleMenuDishes = new HashMap<>();
     /**
-     * Агент склада
+     * Блюда меню, в которых используется продукт заданного типа
+     * Ключ - тип продукта
+     * Значение - блюда меню
      */
-    private AID warehouseAgent;
+    private final HashMap<Integer, ArrayList<MenuDish>> menuDishesByProductType = new HashMap<>();
+    /**
+     * Продукты, необходимые для приготовления блюда, суммарно по типам
+     * Ключ - id карточки блюда
+     * Значение - необходимое количество продуктов (ключ - тип продукта, значение - суммарное количество)
+     */
+    private final HashMap<Integer, LinkedHashMap<Integer, Double>> dishesRequiredProducts = new HashMap<>();
+    /**
+     * Блюда меню, для которых на кухне есть все типы операций и оборудования, и их карточки.
+     * Только эти блюда перепроверяются при изменении остатков на складе
+     */
+    private final HashMap<MenuDish, DishCard> equippedMenuDishes = new HashMap<>();
+    /**
+     * Известные остатки продуктов на складе
+     * Ключ - тип продукта
+     * Значение - доступное количество
+     */
+    private final HashMap<Integer, Double> productsStock = new HashMap<>();
+    /**
+     * Оценщик времени работы кухни по времени, оставшемуся до конца резервации поваров и оборудования
+     * (null, пока не получено текущее состояние всех ресурсов)
+     */
+    private KitchenTimeEstimator kitchenTimeEstimator;
+    /**
+     * Момент построения оценщика времени работы кухни по часам симуляции (нс)
+     */
+    private long kitchenSnapshotNanos;
+    /**
+     * Зеркало резервации поваров, обновляемое уведомлениями агентов поваров
+     * Ключ - агент повара
+     * Значение - момент окончания резервации по часам симуляции (нс), 0 - повар свободен
+     */
+    private final HashMap<AID, Long> cookReservations = new HashMap<>();
+    /**
+     * Зеркало резервации оборудования, обновляемое уведомлениями агентов оборудования
+     * Ключ - агент оборудования
+     * Значение - момент окончания резервации по часам симуляции (нс), 0 - оборудование свободно
+     */
+    private final HashMap<AID, Long> equipmentReservations = new HashMap<>();
+    /**
+     * Типы оборудования
+     * Ключ - агент оборудования
+     * Значение - тип оборудования
+     */
+    private final HashMap<AID, Integer> equipmentTypes = new HashMap<>();
+    /**
+     * Оценки времени, рассчитанные по текущему снимку времени резервации ресурсов
+     */
+    private final TimeEstimateCache timeEstimateCache = new TimeEstimateCache();
     /**
      * Агенты поваров
      */
@@ -64,9 +121,13 @@ public class MenuAgent extends RestaurantAgent {
      */
     private AID[] equipmentAgents;
     /**
-     * Количество блюд на проверке на возможность приготовления
+     * Количество блюд на проверке на возможность приготовления при первой актуализации меню
      */
     private int checkingDishesCount;
+    /**
+     * Счетчик запросов проверки блюд (для уникальных идентификаторов запросов к складу)
+     */
+    private int checkRequestsCount;
     /**
      * Статус актуальности меню
      */
@@ -75,15 +136,30 @@ public class MenuAgent extends RestaurantAgent {
 
     @Override
     protected void setup() {
-        warehouseAgent = find("Warehouse")[0];
         cookAgents = find("Cook");
         equipmentAgents = find("Equipment");
         menuStatus = Status.NOT_ACTUALIZED;
-        resourcesReservationTimeStatus = Status.NOT_ACTUALIZED;
+        resourcesReservationTimeStatus = Status.ACTUALIZING;
+        for (var menuDish : DataParser.Data.menuDishes) {
+            DishCard dishCard = findDishCardByMenuId(menuDish.getId());
+            if (!menuDish.isActive() || dishCard == null) {
+                continue;
+            }
+            LinkedHashMap<Integer, Double> requiredProducts = calculateRequiredProducts(dishCard);
+            for (var productType : requiredProducts.keySet()) {
+                menuDishesByProductType.computeIfAbsent(productType, k -> new ArrayList<>()).add(menuDish);
+            }
+            dishesRequiredProducts.put(dishCard.getId(), requiredProducts);
+        }
         register("Menu");
         report("был создан");
+        addBehaviour(new ReservationMirrorBehaviour());
+        subscribe(cookAgents, "Cook-reserving");
+        subscribe(equipmentAgents, "Equipment-reserving");
         addBehaviour(new TimeCalculationBehavior());
+        addBehaviour(new MenuActualizationBehaviour());
         addBehaviour(new ActualMenuProvidingBehaviour());
+        addBehaviour(new StockChangeBehaviour());
         addBehaviour(new DeleteBehaviour());
     }
 
@@ -93,8 +169,8 @@ public class MenuAgent extends RestaurantAgent {
      * 1) Рассчитывает общее время простоя необходимое для приготовления блюда.
      * Данные расчеты используются агентом супервизора при выборе очередного блюда для готовки.
      * 2) Рассчитывает время до конца приготовления либо массива операций, либо цепочки из блюд
-     * Данные расчеты используются агентами процесса и заказа в момент, когда посетитель запрашивает
-     * оставшееся время до приготовления всего заказа
+     * Данные расчеты используются агентом заказа для поддержания оценки оставшегося времени
+     * до приготовления всего заказа
      */
     private class TimeCalculationBehavior extends CyclicBehaviour {
         private int step = 0;
@@ -110,26 +186,38 @@ public class MenuAgent extends RestaurantAgent {
                     msg = receive(mt);
                     if (msg != null) {
                         reply = msg.createReply();
-                        if (resourcesReservationTimeStatus == Status.NOT_ACTUALIZED) {
-                            addBehaviour(new ResourcePollingBehavior());
-                        }
+                        actualizeKitchenSnapshot();
                         step = 1;
                     } else {
                         block();
                     }
                 }
                 case 1 -> {
+                    // Зеркало резерваций могло измениться, пока запрос ожидал обработки
+                    actualizeKitchenSnapshot();
                     if (resourcesReservationTimeStatus == Status.ACTUALIZED) {
                         if (msg.getOntology().equals("Operations")) {
                             ArrayList<Operation> operations = getObjectFromMsg(msg);
-                            reply.setContent(String.valueOf(calculateOperationsTime(operations, false)));
+                            double time;
+                            if (msg.getProtocol() != null) {
+                                // Цепочка операций - окончание карточки блюда: "id карточки:номер первой операции"
+                                String[] chain = msg.getProtocol().split(":");
+                                time = timeEstimateCache.getOperationsTime(Integer.parseInt(chain[0]), Integer.parseInt(chain[1]), false,
+                                        () -> kitchenTimeEstimator.calculateOperationsTime(operations, false));
+                            } else {
+                                time = kitchenTimeEstimator.calculateOperationsTime(operations, false);
+                            }
+                            reply.setContent(String.valueOf(time));
                         } else if (msg.getOntology().equals("DishCards")) {
                             ArrayList<DishCard> dishCards = getObjectFromMsg(msg);
-                            reply.setContent(String.valueOf(calculateDishesTime(dishCards)));
+                            reply.setContent(String.valueOf(timeEstimateCache.getDishesTime(dishCards,
+                                    () -> kitchenTimeEstimator.calculateDishesTime(dishCards))));
                         } else if (msg.getOntology().equals("DishData")) {
                             ArrayList<DishData> waitingDishesDataArray = getObjectFromMsg(msg);
                             for (var dishData : waitingDishesDataArray) {
-                                double waitingTime = calculateOperationsTime(dishData.getDishCard().getOperations(), true);
+                                DishCard dishCard = dishData.getDishCard();
+                                double waitingTime = timeEstimateCache.getOperationsTime(dishCard.getId(), 0, true,
+                                        () -> kitchenTimeEstimator.calculateOperationsTime(dishCard.getOperations(), true));
                                 waitingTime /= dishData.getPriority();
                                 dishData.setWaitingTime(waitingTime);
                             }
@@ -137,6 +225,8 @@ public class MenuAgent extends RestaurantAgent {
                         }
                         send(reply);
                         step = 0;
+                    } else {
+                        waitForStateChange(this);
                     }
                 }
             }
@@ -145,178 +235,43 @@ public class MenuAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику опроса всех ресурсов ресторана на предмет оставшегося времени резервации
+     * Поведение описывает логику поддержания зеркала резервации ресурсов ресторана.
+     * Агенты ресурсов сообщают о каждом изменении резервации (резервация, её отмена или окончание),
+     * после чего текущий снимок времени резервации ресурсов считается устаревшим
      */
-    private class ResourcePollingBehavior extends Behaviour {
-        private int step = 0;
-        private int cookRepliesCount = 0;
-        private int equipmentRepliesCount = 0;
-
+    private class ReservationMirrorBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            switch (step) {
-                case 0 -> {
-                    resourcesReservationTimeStatus = Status.ACTUALIZING;
-                    cookReservationTimes = new ArrayList<>();
-                    equipmentReservationTimes = new HashMap<>();
-                    String replyWith = String.valueOf(System.currentTimeMillis());
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Cook-reserving");
-                    msg.setReplyWith(replyWith);
-                    for (var cookAgent : cookAgents) {
-                        msg.addReceiver(cookAgent);
-                    }
-                    send(msg);
-                    msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Equipment-reserving");
-                    msg.setReplyWith(replyWith);
-                    for (var equipmentAgent : equipmentAgents) {
-                        msg.addReceiver(equipmentAgent);
-                    }
-                    send(msg);
-                    step = 1;
-                }
-                case 1 -> {
-                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                            MessageTemplate.or(MessageTemplate.MatchConversationId("Cook-reserving"), MessageTemplate.MatchConversationId("Equipment-reserving")));
-                    ACLMessage msg = receive(mt);
-                    if (msg != null) {
-                        if (msg.getConversationId().equals("Cook-reserving")) {
-                            cookReservationTimes.add(Double.parseDouble(msg.getContent()));
-                            cookRepliesCount++;
-                        } else {
-                            int equipmentType = Integer.parseInt(msg.getOntology());
-                            if (!equipmentReservationTimes.containsKey(equipmentType)) {
-                                equipmentReservationTimes.put(equipmentType, new ArrayList<>());
-                            }
-                            equipmentReservationTimes.get(equipmentType).add(Double.parseDouble(msg.getContent()));
-                            equipmentRepliesCount++;
-                        }
-                        if (cookRepliesCount >= cookAgents.length && equipmentRepliesCount >= equipmentAgents.length) {
-                            step = 2;
-                        }
-                    } else {
-                        block();
-                    }
-                }
-                case 2 -> {
-                    cookReservationTimes.sort(Comparator.naturalOrder());
-                    for (var equipmentTimesArray : equipmentReservationTimes.values()) {
-                        equipmentTimesArray.sort(Comparator.naturalOrder());
-                    }
-                    resourcesReservationTimeStatus = Status.ACTUALIZED;
-                    addBehaviour(new WakerBehaviour(myAgent, KITCHEN_ACTUALIZED_STATUS_THRESHOLD) {
-                        @Override
-                        protected void onWake() {
-                            resourcesReservationTimeStatus = Status.NOT_ACTUALIZED;
-                        }
-                    });
-                    step = 3;
-                }
-            }
-        }
-
-        @Override
-        public boolean done() {
-            return step == 3;
-        }
-    }
-
-    /**
-     * Метод для расчета времени операций, работающий в двух режимах:
-     * 1) Метод рассчитывает общее время простоя кухни при выполнении серии операций
-     * 2) Метод рассчитывает оставшееся время до конца выполнения серии операции
-     * @param operations - массив операций
-     * @param calculateWaitingTime - режим работы
-     * @return - рассчитанное время
-     */
-    private double calculateOperationsTime(ArrayList<Operation> operations, boolean calculateWaitingTime) {
-        if (operations.size() == 0) {
-            return 0;
-        }
-
-        double waitingTime;
-        if (operations.get(0).getEquipmentType() == -1) {
-            waitingTime = cookReservationTimes.get(0);
-        } else {
-            waitingTime = Math.max(cookReservationTimes.get(0), equipmentReservationTimes.get(operations.get(0).getEquipmentType()).get(0));
-        }
-
-        double totalTime = waitingTime + operations.get(0).getTime() * SIMULATION_DECELERATION_FACTOR;
-        double totalWaitingTime = waitingTime;
-
-        for (int i = 1; i < operations.size(); i++) {
-            double equipmentTime;
-            if (operations.get(i).getEquipmentType() == -1) {
-                equipmentTime = 0;
-            } else {
-                equipmentTime = equipmentReservationTimes.get(operations.get(i).getEquipmentType()).get(0);
-            }
-            waitingTime = equipmentTime - totalTime;
-            if (waitingTime < 0) {
-                waitingTime = 0;
-            }
-            totalTime += waitingTime + operations.get(i).getTime() * SIMULATION_DECELERATION_FACTOR;
-            totalWaitingTime += waitingTime;
-        }
-
-        if (calculateWaitingTime) {
-            return totalWaitingTime;
-        }
-        return totalTime;
-    }
-
-    /**
-     * Метод для расчёта общего времени приготовления цепочки из блюд
-     * @param dishCards - массив карточек блюд
-     * @return - рассчитанное время
-     */
-    private double calculateDishesTime(ArrayList<DishCard> dishCards) {
-        if (dishCards.size() == 0) {
-            return 0;
-        }
-
-        double waitingTime;
-        ArrayList<Double> cookReservationTimesLocal = new ArrayList<>(cookReservationTimes);
-        HashMap<Integer, ArrayList<Double>> equipmentReservationTimesLocal = copyEquipmentHashMap(equipmentReservationTimes);
-        ArrayList<Double> totalTimes = new ArrayList<>();
-
-        for (int i = 0; i < dishCards.size(); i++) {
-            ArrayList<Operation> operations = dishCards.get(i).getOperations();
-            for (int j = 0; j < operations.size(); j++) {
-                double equipmentTime;
-                if (operations.get(j).getEquipmentType() == -1) {
-                    equipmentTime = 0;
-                } else {
-                    equipmentTime = equipmentReservationTimesLocal.get(operations.get(j).getEquipmentType()).get(0);
-                }
-                if (j == 0) {
-                    waitingTime = Math.max(cookReservationTimesLocal.get(0), equipmentTime);
-                    totalTimes.add(waitingTime + operations.get(j).getTime() * SIMULATION_DECELERATION_FACTOR);
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Reservation-change"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                long deadline = Long.parseLong(msg.getContent());
+                if (msg.getOntology() == null || msg.getOntology().isEmpty()) {
+                    cookReservations.put(msg.getSender(), deadline);
                 } else {
-                    waitingTime = equipmentTime - totalTimes.get(i);
-                    if (waitingTime < 0) {
-                        waitingTime = 0;
-                    }
-                    totalTimes.set(i, totalTimes.get(i) + waitingTime + operations.get(j).getTime() * SIMULATION_DECELERATION_FACTOR);
+                    equipmentTypes.put(msg.getSender(), Integer.parseInt(msg.getOntology()));
+                    equipmentReservations.put(msg.getSender(), deadline);
                 }
-                cookReservationTimesLocal.set(0, cookReservationTimesLocal.get(0) + operations.get(j).getTime() * SIMULATION_DECELERATION_FACTOR);
-                if (operations.get(j).getEquipmentType() != -1) {
-                    equipmentReservationTimesLocal.get(operations.get(j).getEquipmentType()).set(0,
-                            equipmentReservationTimesLocal.get(operations.get(j).getEquipmentType()).get(0) + operations.get(j).getTime() * SIMULATION_DECELERATION_FACTOR);
+                if (resourcesReservationTimeStatus == Status.ACTUALIZED) {
+                    resourcesReservationTimeStatus = Status.NOT_ACTUALIZED;
+                } else if (resourcesReservationTimeStatus == Status.ACTUALIZING
+                        && cookReservations.size() >= cookAgents.length && equipmentReservations.size() >= equipmentAgents.length) {
+                    // Получено текущее состояние всех ресурсов
+                    resourcesReservationTimeStatus = Status.NOT_ACTUALIZED;
+                    actualizeKitchenSnapshot();
                 }
-            }
-            cookReservationTimesLocal.sort(Comparator.naturalOrder());
-            for (var equipmentTimesArray : equipmentReservationTimesLocal.values()) {
-                equipmentTimesArray.sort(Comparator.naturalOrder());
+            } else {
+                block();
             }
         }
-        return Collections.max(totalTimes);
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику предоставления актуального меню
+     * Поведение описывает логику предоставления актуального меню.
+     * Меню не пересобирается на каждый запрос: после первой актуализации агент сразу отвечает хранимым меню,
+     * при устаревшем снимке времени резервации ресурсов он лишь перестраивается по зеркалу резерваций
      */
     private class ActualMenuProvidingBehaviour extends CyclicBehaviour {
         private int step = 0;
@@ -331,9 +286,7 @@ public class MenuAgent extends RestaurantAgent {
                     ACLMessage msg = receive(mt);
                     if (msg != null) {
                         reply = msg.createReply();
-                        if (menuStatus != Status.ACTUALIZING) {
-                            addBehaviour(new MenuActualizationBehaviour());
-                        }
+                        actualizeKitchenSnapshot();
                         step = 1;
                     } else {
                         block();
@@ -344,6 +297,8 @@ public class MenuAgent extends RestaurantAgent {
                         setObjectToMsg(reply, activeMenuDishes);
                         myAgent.send(reply);
                         step = 0;
+                    } else {
+                        waitForStateChange(this);
                     }
                 }
             }
@@ -352,7 +307,7 @@ public class MenuAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику актуализации меню
+     * Поведение описывает логику первой (полной) актуализации меню
      */
     private class MenuActualizationBehaviour extends Behaviour {
         private int step = 0;
@@ -362,7 +317,6 @@ public class MenuAgent extends RestaurantAgent {
             switch (step) {
                 case 0 -> {
                     report("начинаю актуализацию меню...");
-                    activeMenuDishes = new ArrayList<>();
                     checkingDishesCount = DataParser.Data.menuDishes.size();
                     menuStatus = Status.ACTUALIZING;
                     for (var menuDish : DataParser.Data.menuDishes) {
@@ -374,7 +328,10 @@ public class MenuAgent extends RestaurantAgent {
                     if (checkingDishesCount == 0) {
                         report("актуализация меню завершена");
                         menuStatus = Status.ACTUALIZED;
+                        notifyStateChanged();
                         step = 2;
+                    } else {
+                        waitForStateChange(this);
                     }
                 }
             }
@@ -386,9 +343,154 @@ public class MenuAgent extends RestaurantAgent {
         }
     }
 
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику перепроверки блюд меню, в которых используются продукты,
+     * остатки которых изменились на складе. Перепроверка выполняется локально, по известным остаткам
+     */
+    private class StockChangeBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Stock-change"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                for (var productStock : WarehouseRouter.parse(msg.getContent()).entrySet()) {
+                    productsStock.put(productStock.getKey(), productStock.getValue());
+                    for (var menuDish : menuDishesByProductType.getOrDefault(productStock.getKey(), new ArrayList<>())) {
+                        DishCard dishCard = equippedMenuDishes.get(menuDish);
+                        if (dishCard != null) {
+                            checkProducts(menuDish, dishCard);
+                        }
+                    }
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Метод перестраивает снимок времени резервации ресурсов по зеркалу резерваций, если снимок устарел:
+     * резервация ресурсов изменилась или со времени построения снимка прошло больше KITCHEN_ACTUALIZED_STATUS_THRESHOLD.
+     * Пока не получено текущее состояние всех ресурсов, снимок не строится
+     */
+    private void actualizeKitchenSnapshot() {
+        if (resourcesReservationTimeStatus == Status.ACTUALIZED
+                && (SimulationClock.nanoTime() - kitchenSnapshotNanos) / 1_000_000 >= KITCHEN_ACTUALIZED_STATUS_THRESHOLD) {
+            resourcesReservationTimeStatus = Status.NOT_ACTUALIZED;
+        }
+        if (resourcesReservationTimeStatus != Status.NOT_ACTUALIZED) {
+            return;
+        }
+        KitchenTimeEstimator estimator = new KitchenTimeEstimator();
+        for (var deadline : cookReservations.values()) {
+            estimator.addCookTime(secondsUntil(deadline));
+        }
+        for (var entry : equipmentReservations.entrySet()) {
+            estimator.addEquipmentTime(equipmentTypes.get(entry.getKey()), secondsUntil(entry.getValue()));
+        }
+        kitchenTimeEstimator = estimator;
+        kitchenSnapshotNanos = SimulationClock.nanoTime();
+        timeEstimateCache.advance();
+        resourcesReservationTimeStatus = Status.ACTUALIZED;
+        for (var entry : feasibleMenuDishes.entrySet()) {
+            checkCookingTime(entry.getKey(), entry.getValue());
+        }
+        notifyStateChanged();
+    }
+
+    /**
+     * Метод учитывает завершение проверки очередного блюда меню при первой актуализации
+     */
+    private void dishChecked() {
+        checkingDishesCount--;
+        notifyStateChanged();
+    }
+
+    /**
+     * Метод проверяет по известным остаткам, что на складе есть все продукты блюда
+     * (количество продуктов одного типа, используемых в разных операциях, суммируется),
+     * и затем время готовки блюда
+     * @param menuDish - блюдо меню
+     * @param dishCard - карточка блюда
+     */
+    private void checkProducts(MenuDish menuDish, DishCard dishCard) {
+        for (var requiredProduct : dishesRequiredProducts.get(dishCard.getId()).entrySet()) {
+            if (productsStock.getOrDefault(requiredProduct.getKey(), 0.0) < requiredProduct.getValue()) {
+                setProductsAvailability(menuDish, dishCard, false);
+                return;
+            }
+        }
+        setProductsAvailability(menuDish, dishCard, true);
+    }
+
+    /**
+     * Метод применяет результат проверки продуктов блюда и затем проверяет время готовки блюда
+     * @param menuDish - блюдо меню
+     * @param dishCard - карточка блюда
+     * @param productsAvailable - есть ли на складе все продукты блюда
+     */
+    private void setProductsAvailability(MenuDish menuDish, DishCard dishCard, boolean productsAvailable) {
+        if (!productsAvailable) {
+            feasibleMenuDishes.remove(menuDish);
+            setMenuDishAvailability(menuDish, dishCard, false, "не все продукты есть на складе");
+            return;
+        }
+        feasibleMenuDishes.put(menuDish, dishCard);
+        checkCookingTime(menuDish, dishCard);
+    }
+
+    /**
+     * Метод проверяет, что время готовки блюда при текущей резервации ресурсов не превышает порог
+     * @param menuDish - блюдо меню
+     * @param dishCard - карточка блюда
+     */
+    private void checkCookingTime(MenuDish menuDish, DishCard dishCard) {
+        List<DishCard> wrappedDishCard = Collections.singletonList(dishCard);
+        if (timeEstimateCache.getDishesTime(wrappedDishCard, () -> kitchenTimeEstimator.calculateDishesTime(wrappedDishCard)) < DISH_COOKING_TIME_THRESHOLD) {
+            setMenuDishAvailability(menuDish, dishCard, true, null);
+        } else {
+            setMenuDishAvailability(menuDish, dishCard, false, "максимально допустимое время готовки превысило порог");
+        }
+    }
+
+    /**
+     * Метод добавляет блюдо в меню или исключает его из меню.
+     * Меню пересобирается только при изменении доступности блюда
+     * @param menuDish - блюдо меню
+     * @param dishCard - карточка блюда
+     * @param available - доступно ли блюдо
+     * @param reason - причина исключения блюда из меню
+     */
+    private void setMenuDishAvailability(MenuDish menuDish, DishCard dishCard, boolean available, String reason) {
+        Boolean previous = menuDishesAvailability.put(menuDish.getId(), available);
+        if (previous != null && previous == available) {
+            return;
+        }
+        if (available) {
+            if (previous != null) {
+                report(String.format("блюдо '%s' было возвращено в меню", dishCard.getName()));
+            }
+        } else {
+            report(String.format("блюдо '%s' было исключено из меню. Причина: %s", dishCard.getName(), reason));
+            if (previous == null) {
+                return;
+            }
+        }
+        ArrayList<MenuDish> menuDishes = new ArrayList<>();
+        for (var dish : DataParser.Data.menuDishes) {
+            if (menuDishesAvailability.getOrDefault(dish.getId(), false)) {
+                menuDishes.add(dish);
+            }
+        }
+        activeMenuDishes = menuDishes;
+    }
+
     /**
      * Класс поведения агента.
      * Поведение описывает логику проверку блюда на возможность его приготовить в данный момент
+     * (выполняется при первой актуализации меню)
      */
     private class DishCheckingBehaviour extends Behaviour {
         private final MenuDish menuDish;
@@ -396,6 +498,7 @@ public class MenuAgent extends RestaurantAgent {
         private int step = 0;
         private int msgCount = 0;
         private int repliesCount = 0;
+        private boolean productsAvailable = true;
         boolean failure = false;
         MessageTemplate mt;
 
@@ -404,7 +507,7 @@ public class MenuAgent extends RestaurantAgent {
             dishCard = findDishCardByMenuId(menuDish.getId());
             if (!menuDish.isActive() || dishCard == null) {
                 step = 5;
-                checkingDishesCount--;
+                dishChecked();
             }
         }
 
@@ -422,34 +525,42 @@ public class MenuAgent extends RestaurantAgent {
                                 }
                             }
                             if (!success) {
-                                report(String.format("блюдо '%s' было исключено из меню. Причина: не все типы операций присутствуют на кухне", dishCard.getName()));
-                                checkingDishesCount--;
+                                setMenuDishAvailability(menuDish, dishCard, false, "не все типы операций присутствуют на кухне");
+                                dishChecked();
                                 step = 5;
                                 break;
                             }
                         }
+                        if (step == 5) {
+                            break;
+                        }
                     }
                 case 1:
-                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.addReceiver(warehouseAgent);
-                    msg.setConversationId("Checking");
-                    msg.setReplyWith(String.valueOf(dishCard.getId()));
-                    for (var operation : dishCard.getOperations()) {
-                        for (var product : operation.getProducts()) {
-                            setObjectToMsg(msg, product);
-                            send(msg);
-                            msgCount++;
-                        }
+                    // Один запрос на все продукты блюда к каждому шарду склада, которому принадлежат его продукты
+                    // Идентификатор запроса уникален: несколько блюд меню могут ссылаться на одну карточку блюда
+                    String requestID = menuDish.getId() + "-" + (++checkRequestsCount);
+                    var partitions = WarehouseRouter.partition(dishesRequiredProducts.get(dishCard.getId()));
+                    for (var partition : partitions.entrySet()) {
+                        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                        msg.addReceiver(findWarehouse(partition.getValue().keySet().iterator().next()));
+                        msg.setConversationId("Bulk-checking");
+                        msg.setReplyWith(requestID);
+                        msg.setContent(WarehouseRouter.format(partition.getValue()));
+                        send(msg);
                     }
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM), MessageTemplate.MatchConversationId("Checking"));
-                    mt = MessageTemplate.and(mt, MessageTemplate.MatchInReplyTo(msg.getReplyWith()));
-                    step = 2;
+                    msgCount = partitions.size();
+                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM), MessageTemplate.MatchConversationId("Bulk-checking"));
+                    mt = MessageTemplate.and(mt, MessageTemplate.MatchInReplyTo(requestID));
+                    step = msgCount > 0 ? 2 : 3;
                     break;
                 case 2:
                     ACLMessage reply = myAgent.receive(mt);
                     if (reply != null) {
-                        if (reply.getContent().equals("failure")) {
-                            failure = true;
+                        for (var productStock : WarehouseRouter.parse(reply.getOntology()).entrySet()) {
+                            productsStock.put(productStock.getKey(), productStock.getValue());
+                        }
+                        if ("failure".equals(reply.getContent())) {
+                            productsAvailable = false;
                         }
                         repliesCount++;
                         if (repliesCount >= msgCount) {
@@ -460,43 +571,31 @@ public class MenuAgent extends RestaurantAgent {
                     }
                     break;
                 case 3:
+                    for (var operation : dishCard.getOperations()) {
+                        if (operation.getEquipmentType() >= 0) {
+                            AID[] agents = find("Equipment", new Property("equipmentType", operation.getEquipmentType()));
+                            if (agents.length == 0) {
+                                failure = true;
+                            }
+                        }
+                    }
                     if (failure) {
-                        report(String.format("блюдо '%s' было исключено из меню. Причина: не все продукты есть на складе", dishCard.getName()));
-                        checkingDishesCount--;
+                        setMenuDishAvailability(menuDish, dishCard, false, "не все типы оборудования есть на кухне");
+                        dishChecked();
                         step = 5;
                     } else {
-                        for (var operation : dishCard.getOperations()) {
-                            if (operation.getEquipmentType() >= 0) {
-                                AID[] agents = find("Equipment", new Property("equipmentType", operation.getEquipmentType()));
-                                if (agents.length == 0) {
-                                    failure = true;
-                                }
-                            }
-                        }
-                        if (failure) {
-                            report(String.format("блюдо '%s' было исключено из меню. Причина: не все типы оборудования есть на кухне", dishCard.getName()));
-                            checkingDishesCount--;
-                            step = 5;
-                        } else {
-                            if (resourcesReservationTimeStatus == Status.NOT_ACTUALIZED) {
-                                addBehaviour(new ResourcePollingBehavior());
-                            }
-                            step = 4;
-                        }
+                        equippedMenuDishes.put(menuDish, dishCard);
+                        actualizeKitchenSnapshot();
+                        step = 4;
                     }
                     break;
                 case 4:
-                    if (resourcesReservationTimeStatus == Status.ACTUALIZED) {
-                        ArrayList<DishCard> wrappedDishCard = new ArrayList<>(1);
-                        wrappedDishCard.add(dishCard);
-                        if (calculateDishesTime(wrappedDishCard) < DISH_COOKING_TIME_THRESHOLD) {
-                            activeMenuDishes.add(menuDish);
-                        } else {
-                            report(String.format("блюдо '%s' было исключено из меню. Причина: максимально допустимое время готовки превысило порог", dishCard.getName()));
-                            System.out.println("Отменяю добавление блюда");
-                        }
-                        checkingDishesCount--;
+                    if (kitchenTimeEstimator != null) {
+                        setProductsAvailability(menuDish, dishCard, productsAvailable);
+                        dishChecked();
                         step = 5;
+                    } else {
+                        waitForStateChange(this);
                     }
                     break;
             }
@@ -1,20 +1,23 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.AgentPool;
 import hse.java.kdz.jade.restaurant.tools.AgentTools;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.TimingWheel;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
 import hse.java.kdz.jade.restaurant.types.Operation;
 import hse.java.kdz.jade.restaurant.types.OperationReport;
+import hse.java.kdz.jade.restaurant.types.OperationTask;
 import jade.core.AID;
-import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
-import jade.core.behaviours.TickerBehaviour;
-import jade.core.behaviours.WakerBehaviour;
 import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 
@@ -23,7 +26,6 @@ import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
  * Поведения агента:
  * 1) Выполнить заданную операцию, сделав для этого все необходимое
  * 2) Отменить выполнение текущей операции (по запросу от агента процесса)
- * 3) Сообщить сколько времени осталось до завершения операции
  */
 public class OperationAgent extends RestaurantAgent {
     /**
@@ -34,18 +36,26 @@ public class OperationAgent extends RestaurantAgent {
      * Id заказанного блюда
      */
     private int orderedDishID;
+    /**
+     * Id карточки блюда
+     */
+    private int dishCardID;
+    /**
+     * Номер операции в карточке блюда
+     */
+    private int operationIndex;
     /**
      * Id операции
      */
     private int operationID;
     /**
-     * Время, оставшееся до завершения операции
+     * Момент завершения операции (по монотонным часам, см. AgentTools.deadlineAfter)
      */
-    private double timeLeft;
+    private long deadline;
     /**
-     * Агент склада
+     * Агент процесса, запустивший операцию
      */
-    private AID warehouseAgent;
+    private AID processAgent;
     /**
      * Зарезервирован ли повар
      */
@@ -66,103 +76,195 @@ public class OperationAgent extends RestaurantAgent {
      * Агент зарезервированного повара
      */
     private AID reservedCookAgent;
-    /**
-     * Выполняется ли операция
-     */
-    private boolean executing = false;
     /**
      * Отчёт об операции (сохраняется в operation_log.json)
      */
     private OperationReport operationReport;
+    /**
+     * Является ли агент исполнителем из пула
+     */
+    private boolean pooled = false;
+    /**
+     * Выполняет ли агент задание в данный момент
+     */
+    private boolean active = false;
 
     @Override
     protected void setup() {
-        operation = (Operation) getArguments()[0];
-        orderedDishID = (int) getArguments()[2];
-        operationID = (int) getArguments()[5];
-        warehouseAgent = find("Warehouse")[0];
-        register("Operation", new Property("orderedDishID", orderedDishID),
-                new Property("currentOperation", getArguments()[4]),
-                new Property("operationID", operationID));
-        report("был создан");
-        operationReport = new OperationReport(operationID, (int) getArguments()[1], (int) getArguments()[3]);
-        operationReport.setStarted(new Date());
-        addBehaviour(new OperationExecutionBehaviour());
+        if (getArguments() != null && getArguments().length > 0) {
+            OperationTask task = (OperationTask) getArguments()[0];
+            register("Operation", new Property("orderedDishID", task.getOrderedDishID()),
+                    new Property("currentOperation", task.getOperationIndex()),
+                    new Property("operationID", task.getOperationID()));
+            report("был создан");
+            startTask(task);
+        } else {
+            pooled = true;
+            register("Operation");
+            report("был создан");
+            addBehaviour(new AssignmentBehaviour());
+        }
+        if (USE_KITCHEN_SCHEDULER) {
+            addBehaviour(new ResourceAssignmentBehaviour());
+        }
         addBehaviour(new OperationCancellationBehaviour());
-        addBehaviour(new OperationTimeRecognitionBehaviour());
         addBehaviour(new DeleteBehaviour());
     }
 
+    /**
+     * Метод сбрасывает состояние агента и начинает выполнение нового задания
+     * @param task - задание на выполнение операции
+     */
+    private void startTask(OperationTask task) {
+        operation = task.getOperation();
+        orderedDishID = task.getOrderedDishID();
+        dishCardID = task.getDishCardID();
+        operationIndex = task.getOperationIndex();
+        operationID = task.getOperationID();
+        processAgent = task.getProcessAgent();
+        isCookReserved = false;
+        isEquipmentReserved = false;
+        cancelled = false;
+        reservedEquipmentAgent = null;
+        reservedCookAgent = null;
+        active = true;
+        operationReport = new OperationReport(operationID, task.getProcessID(), task.getDishCardID());
+        operationReport.setStarted(SimulationClock.now());
+        announce(processAgent, String.valueOf(operationID));
+        addBehaviour(new OperationExecutionBehaviour(operationID));
+    }
+
+    /**
+     * Метод завершения текущего задания.
+     * Агент из пула сохраняет отчёт об операции и возвращается в пул
+     */
+    private void finishTask() {
+        active = false;
+        notifyStateChanged();
+        if (pooled) {
+            AgentTools.addOperationReport(operationReport);
+            AgentPool.release("Operation", getAID());
+        }
+    }
+
+    /**
+     * Метод проверяет, относится ли поведение к отмененному или уже завершенному заданию
+     * @param taskID - id задания, для которого было создано поведение
+     */
+    private boolean isObsolete(int taskID) {
+        return cancelled || taskID != operationID;
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику получения нового задания агентом из пула
+     */
+    private class AssignmentBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            ACLMessage msg = receive(assignmentTemplate("Operation"));
+            if (msg != null) {
+                startTask(getObjectFromMsg(msg));
+            } else {
+                block();
+            }
+        }
+    }
+
     /**
      * Класс поведения агента.
      * Поведение описывает логику выполнения операции.
-     * Агент резервирует необходимые продукты через агента склада.
-     * Агент резервирует повара через агента повара и оборудование через агента оборудования.
+     * Продукты операции заранее резервирует агент блюда (см. DishAgent.ProductsReservationBehaviour).
+     * Агент резервирует повара через агента повара и оборудование через агента оборудования
+     * либо получает их назначение от агента планировщика кухни (см. USE_KITCHEN_SCHEDULER).
      * По истечению заданного времени операция считается завершенной и сообщает об этом своему агенту процесса
      */
     private class OperationExecutionBehaviour extends Behaviour {
+        private final int taskID;
         private int step = 0;
+        private TimingWheel.Timeout timer;
         ACLMessage msg;
 
+        public OperationExecutionBehaviour(int taskID) {
+            this.taskID = taskID;
+        }
+
         @Override
         public void action() {
-            if (cancelled) {
-                step = 5;
+            if (isObsolete(taskID)) {
+                if (timer != null) {
+                    timer.cancel();
+                }
+                step = 4;
             }
 
             switch (step) {
                 case 0 -> {
-                    msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.addReceiver(warehouseAgent);
-                    msg.setConversationId("Reserving");
-                    msg.setOntology(String.valueOf(orderedDishID));
-                    for (var product : operation.getProducts()) {
-                        setObjectToMsg(msg, product);
+                    if (USE_KITCHEN_SCHEDULER) {
+                        isEquipmentReserved = operation.getEquipmentType() == -1;
+                        msg = new ACLMessage(ACLMessage.REQUEST);
+                        msg.setConversationId("Scheduling");
+                        msg.setReplyWith(String.valueOf(operationID));
+                        msg.setOntology(String.valueOf(operation.getEquipmentType()));
+                        msg.setProtocol(dishCardID + ":" + operationIndex);
+                        msg.setContent(String.valueOf(operation.getTime()));
+                        msg.addReceiver(find("Scheduler")[0]);
                         send(msg);
+                        step = 2;
+                        break;
                     }
-                    step = 1;
-                }
-                case 1 -> {
                     if (operation.getEquipmentType() == -1) {
                         isEquipmentReserved = true;
-                        step = 2;
+                        step = 1;
                         break;
                     }
-                    addBehaviour(new ResourceReservationBehaviour("Equipment"));
-                    step = 2;
+                    addBehaviour(new ResourceReservationBehaviour("Equipment", taskID));
+                    step = 1;
                 }
-                case 2 -> {
+                case 1 -> {
                     if (isEquipmentReserved) {
-                        addBehaviour(new ResourceReservationBehaviour("Cook"));
-                        step = 3;
+                        addBehaviour(new ResourceReservationBehaviour("Cook", taskID));
+                        step = 2;
+                    } else {
+                        waitForStateChange(this);
                     }
                 }
-                case 3 -> {
-                    if (isCookReserved) {
-                        timeLeft = operation.getTime() * SIMULATION_DECELERATION_FACTOR + 0.1;
+                case 2 -> {
+                    if (!isCookReserved || !isEquipmentReserved) {
+                        waitForStateChange(this);
+                    } else {
+                        deadline = deadlineAfter(operation.getTime() * SIMULATION_DECELERATION_FACTOR + 0.1);
                         if (CHECK_OPERATION_TYPE_AVAILABILITY) {
                             report(String.format("приступил к выполнению операции '%s'", findOperationNameByType(operation.getType())));
                         } else {
                             report("приступил к выполнению операции");
                         }
-                        operationReport.setStarted(new Date());
+                        operationReport.setStarted(SimulationClock.now());
                         operationReport.setActive(true);
-                        step = 4;
+                        step = 3;
                     }
                 }
-                case 4 -> {
-                    if (!executing) {
-                        addBehaviour(new ExecutionTimerBehaviour(myAgent));
-                    }
-                    if (timeLeft == 0) {
-                        operationReport.setEnded(new Date());
+                case 3 -> {
+                    long millisLeft = millisUntil(deadline);
+                    if (millisLeft > 0) {
+                        if (timer == null) {
+                            timer = TimingWheel.schedule(millisLeft, this::restart);
+                        }
+                        block();
+                        if (millisUntil(deadline) == 0) {
+                            restart();
+                        }
+                    } else {
+                        operationReport.setEnded(SimulationClock.now());
                         operationReport.setActive(false);
                         msg = new ACLMessage(ACLMessage.INFORM);
-                        msg.addReceiver(find("Process", new Property("orderedDishID", orderedDishID))[0]);
+                        msg.addReceiver(processAgent);
                         msg.setConversationId(String.valueOf(orderedDishID));
+                        msg.setContent(String.valueOf(operationID));
                         myAgent.send(msg);
                         report("завершил операцию");
-                        step = 5;
+                        finishTask();
+                        step = 4;
                     }
                 }
             }
@@ -170,28 +272,7 @@ public class OperationAgent extends RestaurantAgent {
 
         @Override
         public boolean done() {
-            return step == 5;
-        }
-    }
-
-    /**
-     * Класс поведения агента.
-     * Поведение описывает логику работы таймера завершения операции
-     */
-    private class ExecutionTimerBehaviour extends TickerBehaviour {
-        public ExecutionTimerBehaviour(Agent a) {
-            super(a, 10);
-            executing = true;
-        }
-
-        @Override
-        protected void onTick() {
-            timeLeft -= 0.01;
-            if (timeLeft <= 0) {
-                timeLeft = 0;
-                executing = false;
-                myAgent.removeBehaviour(this);
-            }
+            return step == 4;
         }
     }
 
@@ -200,26 +281,28 @@ public class OperationAgent extends RestaurantAgent {
      * Поведение описывает логику отмены выполнения операции
      * Агент информирует об этом агентов продуктов, агента повара и агента оборудования
      */
-    private class OperationCancellationBehaviour extends Behaviour {
-        private boolean isDone = false;
-
+    private class OperationCancellationBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
             MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
                     MessageTemplate.MatchConversationId("Operation-cancellation"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                operationReport.setEnded(new Date());
+                if (!active || cancelled || !String.valueOf(operationID).equals(msg.getContent())) {
+                    return;
+                }
+                operationReport.setEnded(SimulationClock.now());
                 operationReport.setActive(false);
                 cancelled = true;
-                timeLeft = 0;
                 report("операция была отменена");
-                msg = new ACLMessage(ACLMessage.REQUEST);
-                msg.setConversationId("cancellation");
-                for (var productAgent : find("Product", new Property("orderedDishID", orderedDishID))) {
-                    msg.addReceiver(productAgent);
+                releaseProducts(orderedDishID);
+                if (USE_KITCHEN_SCHEDULER && (!isCookReserved || !isEquipmentReserved)) {
+                    msg = new ACLMessage(ACLMessage.CANCEL);
+                    msg.setConversationId("Scheduling");
+                    msg.setReplyWith(String.valueOf(operationID));
+                    msg.addReceiver(find("Scheduler")[0]);
+                    send(msg);
                 }
-                myAgent.send(msg);
                 msg = new ACLMessage(ACLMessage.CANCEL);
                 if (reservedEquipmentAgent != null) {
                     msg.addReceiver(reservedEquipmentAgent);
@@ -231,16 +314,11 @@ public class OperationAgent extends RestaurantAgent {
                     msg.setConversationId("Cook-reserving");
                     send(msg);
                 }
-                isDone = true;
+                finishTask();
             } else {
                 block();
             }
         }
-
-        @Override
-        public boolean done() {
-            return isDone;
-        }
     }
 
     /**
@@ -253,16 +331,18 @@ public class OperationAgent extends RestaurantAgent {
         private MessageTemplate mt;
         private AID[] agents;
         private final String resourceType;
+        private final int taskID;
         ACLMessage msg;
         ACLMessage reply;
 
-        public ResourceReservationBehaviour(String resourceType) {
+        public ResourceReservationBehaviour(String resourceType, int taskID) {
             this.resourceType = resourceType;
+            this.taskID = taskID;
         }
 
         @Override
         public void action() {
-            if (cancelled) {
+            if (isObsolete(taskID)) {
                 step = 5;
             }
 
@@ -326,13 +406,15 @@ public class OperationAgent extends RestaurantAgent {
                             step = 4;
                         } else {
                             if (resourceType.equals("Equipment")) {
-                                operationReport.setCookId(Integer.parseInt(reply.getContent()));
+                                operationReport.setEquipmentId(Integer.parseInt(reply.getContent()));
                                 isEquipmentReserved = true;
                                 reservedEquipmentAgent = reply.getSender();
+                                notifyStateChanged();
                             } else {
-                                operationReport.setEquipmentId(Integer.parseInt(reply.getContent()));
+                                operationReport.setCookId(Integer.parseInt(reply.getContent()));
                                 isCookReserved = true;
                                 reservedCookAgent = reply.getSender();
+                                notifyStateChanged();
                             }
                             step = 5;
                         }
@@ -341,10 +423,10 @@ public class OperationAgent extends RestaurantAgent {
                     }
                 }
                 case 4 -> {
-                    addBehaviour(new WakerBehaviour(myAgent, 50) {
+                    addBehaviour(new WheelWakerBehaviour(myAgent, 50) {
                         @Override
                         protected void onWake() {
-                            addBehaviour(new ResourceReservationBehaviour(resourceType));
+                            addBehaviour(new ResourceReservationBehaviour(resourceType, taskID));
                         }
                     });
                     step = 5;
@@ -360,18 +442,40 @@ public class OperationAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику вычисления оставшегося времени до завершения операции
+     * Поведение описывает логику получения ресурсов, назначенных агентом планировщика кухни:
+     * планировщик пересылает подтверждения резервации агентов повара и оборудования,
+     * указывая агента ресурса получателем ответа.
+     * Резервация, пришедшая для отмененного или уже завершенного задания, сразу отменяется
      */
-    private class OperationTimeRecognitionBehaviour extends CyclicBehaviour {
+    private class ResourceAssignmentBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                    MessageTemplate.MatchConversationId("Operation-time"));
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.ACCEPT_PROPOSAL),
+                    MessageTemplate.or(MessageTemplate.MatchConversationId("Cook-reserving"),
+                            MessageTemplate.MatchConversationId("Equipment-reserving")));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                ACLMessage reply = msg.createReply();
-                reply.setContent(String.valueOf(timeLeft));
-                send(reply);
+                Iterator<?> replyTo = msg.getAllReplyTo();
+                AID resourceAgent = replyTo.hasNext() ? (AID) replyTo.next() : msg.getSender();
+                // Общая резервация нескольких одинаковых операций перечисляет их id через запятую
+                if (!active || cancelled || msg.getInReplyTo() == null
+                        || !Arrays.asList(msg.getInReplyTo().split(",")).contains(String.valueOf(operationID))) {
+                    ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+                    cancel.setConversationId(msg.getConversationId());
+                    cancel.addReceiver(resourceAgent);
+                    send(cancel);
+                    return;
+                }
+                if (msg.getConversationId().equals("Equipment-reserving")) {
+                    operationReport.setEquipmentId(Integer.parseInt(msg.getContent()));
+                    isEquipmentReserved = true;
+                    reservedEquipmentAgent = resourceAgent;
+                } else {
+                    operationReport.setCookId(Integer.parseInt(msg.getContent()));
+                    isCookReserved = true;
+                    reservedCookAgent = resourceAgent;
+                }
+                notifyStateChanged();
             } else {
                 block();
             }
@@ -391,10 +495,12 @@ public class OperationAgent extends RestaurantAgent {
                     MessageTemplate.MatchConversationId("delete"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                if (operationReport.getEnded() == null) {
-                    operationReport.setEnded(new Date());
+                if (operationReport != null && (active || !pooled)) {
+                    if (operationReport.getEnded() == null) {
+                        operationReport.setEnded(SimulationClock.now());
+                    }
+                    AgentTools.addOperationReport(operationReport);
                 }
-                AgentTools.addOperationReport(operationReport);
                 doDelete();
                 isDone = true;
             } else {
@@ -1,6 +1,9 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
 import hse.java.kdz.jade.restaurant.types.DishCard;
+import hse.java.kdz.jade.restaurant.types.Operation;
 import hse.java.kdz.jade.restaurant.types.VisitorOrderedDish;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
@@ -10,15 +13,17 @@ import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import static hse.java.kdz.jade.restaurant.tools.AgentTools.formattedReport;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 
 /**
  * Класс агента заказа.
  * Поведения агента:
  * 1) Сообщить посетителю о готовности заказа
  * 2) Сообщить посетителю сколько времени осталось до приготовления заказа
- * 3) Отменить весь заказ
+ * 3) Поддерживать оценку оставшегося времени заказа по сообщениям агентов блюд о ходе приготовления
+ * 4) Отменить весь заказ
  */
 public class OrderAgent extends RestaurantAgent {
     /**
@@ -33,6 +38,10 @@ public class OrderAgent extends RestaurantAgent {
      * Заказанные посетителем блюда
      */
     private ArrayList<VisitorOrderedDish> visitorOrderedDishes;
+    /**
+     * Агент посетителя, сделавшего заказ
+     */
+    private AID visitorAgent;
     /**
      * Агенты блюд из данного заказа
      */
@@ -41,6 +50,58 @@ public class OrderAgent extends RestaurantAgent {
      * Завершен ли заказ
      */
     private boolean ended = false;
+    /**
+     * Ход приготовления блюд заказа
+     * Ключ - агент блюда
+     * Значение - ход приготовления блюда
+     */
+    private final HashMap<AID, DishProgress> dishesProgress = new HashMap<>();
+    /**
+     * Момент, к которому по последней оценке будет приготовлен весь заказ (см. AgentTools.deadlineAfter)
+     */
+    private long etaDeadline;
+    /**
+     * Момент последнего расчета оценки (по часам симуляции SimulationClock, 0 - оценка еще не рассчитана)
+     */
+    private long etaCalculatedAt = 0;
+    /**
+     * Изменился ли ход приготовления блюд после последней оценки
+     */
+    private boolean etaOutdated = true;
+    /**
+     * Количество начатых пересчетов оценки (используется как id запросов к агенту меню)
+     */
+    private int etaCalculationsCount = 0;
+    /**
+     * Запросы посетителя, поступившие до первого расчета оценки (ответ на них отправляется сразу после расчета)
+     */
+    private final ArrayList<ACLMessage> pendingTimeReplies = new ArrayList<>();
+
+    /**
+     * Класс хода приготовления блюда заказа
+     */
+    private static class DishProgress {
+        /**
+         * Карточка блюда
+         */
+        private final DishCard dishCard;
+        /**
+         * Индекс первой операции выполняемого этапа (-1, пока блюдо не начали готовить)
+         */
+        private int stageStart = -1;
+        /**
+         * Момент начала выполняемого этапа (по часам симуляции SimulationClock)
+         */
+        private long stageStartedAt;
+        /**
+         * Приготовлено ли блюдо
+         */
+        private boolean cooked = false;
+
+        private DishProgress(DishCard dishCard) {
+            this.dishCard = dishCard;
+        }
+    }
 
 
     @Override
@@ -48,27 +109,41 @@ public class OrderAgent extends RestaurantAgent {
         visitorName = (String) getArguments()[0];
         orderID = (int) getArguments()[1];
         visitorOrderedDishes = (ArrayList<VisitorOrderedDish>) getArguments()[2];
+        visitorAgent = (AID) getArguments()[3];
         addBehaviour(new InitializationBehaviour());
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику инициализации агента заказа
+     * Поведение описывает логику инициализации агента заказа.
+     * Агенты блюд сами сообщают агенту заказа о своей готовности
      */
     private class InitializationBehaviour extends Behaviour {
+        private final ArrayList<AID> announcedDishAgents = new ArrayList<>();
         private boolean isDone = false;
 
         @Override
         public void action() {
-            dishAgents = find("Dish", new Property("orderID", orderID));
-            if (dishAgents.length == visitorOrderedDishes.size()) {
-                isDone = true;
-                register("Order", new Property("orderID", orderID), new Property("visitorName", visitorName));
-                report("был создан");
-                addBehaviour(new OrderCompletionCheckingBehaviour());
-                addBehaviour(new OrderTimeRecognitionBehaviour());
-                addBehaviour(new OrderCancellationBehaviour());
-                addBehaviour(new DeleteBehaviour());
+            ACLMessage msg = receive(announcementTemplate());
+            if (msg != null) {
+                announcedDishAgents.add(msg.getSender());
+                if (announcedDishAgents.size() == visitorOrderedDishes.size()) {
+                    isDone = true;
+                    dishAgents = announcedDishAgents.toArray(new AID[0]);
+                    // Посетитель не ждет регистрации заказа в DF
+                    announce(visitorAgent);
+                    register("Order", new Property("orderID", orderID), new Property("visitorName", visitorName));
+                    report("был создан");
+                    addBehaviour(new OrderCompletionCheckingBehaviour());
+                    addBehaviour(new DishProgressBehaviour());
+                    addBehaviour(new EtaCalculationBehaviour());
+                    addBehaviour(new EtaStalenessCheckingBehaviour(ORDER_ETA_STALENESS_THRESHOLD));
+                    addBehaviour(new OrderTimeRecognitionBehaviour());
+                    addBehaviour(new OrderCancellationBehaviour());
+                    addBehaviour(new DeleteBehaviour());
+                }
+            } else {
+                block();
             }
         }
 
@@ -99,6 +174,11 @@ public class OrderAgent extends RestaurantAgent {
                     ACLMessage msg = receive(mt);
                     if (msg != null) {
                         formattedReport("blue", String.format("Блюдо (%s) было подано посетителю '%s'", msg.getContent(), visitorName));
+                        DishProgress dishProgress = dishesProgress.get(msg.getSender());
+                        if (dishProgress != null) {
+                            dishProgress.cooked = true;
+                            outdateEta();
+                        }
                         repliesCount++;
                         if (repliesCount >= dishAgents.length) {
                             ended = true;
@@ -109,14 +189,11 @@ public class OrderAgent extends RestaurantAgent {
                     }
                 }
                 case 1 -> {
-                    AID[] visitorAgent = find("Visitor", new Property("visitorName", visitorName));
-                    if (visitorAgent.length > 0) {
-                        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-                        msg.setConversationId("Order-completion");
-                        msg.addReceiver(visitorAgent[0]);
-                        send(msg);
-                        step = 2;
-                    }
+                    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+                    msg.setConversationId("Order-completion");
+                    msg.addReceiver(visitorAgent);
+                    send(msg);
+                    step = 2;
                 }
             }
         }
@@ -128,90 +205,204 @@ public class OrderAgent extends RestaurantAgent {
     }
 
 
+    /**
+     * Метод помечает оценку оставшегося времени заказа устаревшей, чтобы она была пересчитана
+     */
+    private void outdateEta() {
+        etaOutdated = true;
+        notifyStateChanged();
+    }
+
     /**
      * Класс поведения агента.
-     * Поведение описывает логику распознавания оставшегося времени до приготовления всего заказа
+     * Поведение описывает логику учета хода приготовления блюд заказа.
+     * Агенты блюд сообщают о постановке в очередь (вместе с карточкой блюда), о начале готовки
+     * и о начале каждого этапа процесса приготовления (содержимое - индекс первой операции этапа)
      */
-    private class OrderTimeRecognitionBehaviour extends CyclicBehaviour {
+    private class DishProgressBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Dish-state"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                if (msg.getOntology().equals("Waiting")) {
+                    dishesProgress.put(msg.getSender(), new DishProgress(getObjectFromMsg(msg)));
+                } else if (msg.getOntology().equals("Cooking")) {
+                    DishProgress dishProgress = dishesProgress.get(msg.getSender());
+                    int stageStart = msg.getContent() == null || msg.getContent().isEmpty() ? 0 : Integer.parseInt(msg.getContent());
+                    if (dishProgress == null || dishProgress.cooked || dishProgress.stageStart == stageStart) {
+                        return;
+                    }
+                    dishProgress.stageStart = stageStart;
+                    dishProgress.stageStartedAt = SimulationClock.nanoTime();
+                }
+                outdateEta();
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику пересчета оценки оставшегося времени до приготовления всего заказа.
+     * Для готовящегося блюда остаток выполняемого этапа оценивается по карточке блюда и времени начала этапа,
+     * а следующие этапы рассчитывает агент меню. Для ожидающих блюд агент меню рассчитывает время цепочки блюд
+     */
+    private class EtaCalculationBehaviour extends CyclicBehaviour {
         private int step = 0;
+        private int requestsCount;
         private int repliesCount;
         private double time;
-        private ArrayList<DishCard> dishCards;
-        MessageTemplate mt;
-        ACLMessage msg;
-        private ACLMessage reply;
+        private String requestID;
 
         @Override
         public void action() {
             switch (step) {
                 case 0 -> {
-                    dishCards = new ArrayList<>();
-                    time = 0;
+                    if (ended && !pendingTimeReplies.isEmpty()) {
+                        time = 0;
+                        updateEta();
+                    }
+                    if (ended || !etaOutdated || dishesProgress.size() < dishAgents.length) {
+                        waitForStateChange(this);
+                        break;
+                    }
+                    etaOutdated = false;
+                    requestID = String.valueOf(++etaCalculationsCount);
+                    requestsCount = 0;
                     repliesCount = 0;
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Order-time"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        reply = msg.createReply();
-                        if (ended) {
-                            reply.setContent("0");
-                            send(reply);
-                            step = 0;
-                            break;
+                    time = 0;
+                    ArrayList<DishCard> waitingDishCards = new ArrayList<>();
+                    for (var dishProgress : dishesProgress.values()) {
+                        if (dishProgress.cooked) {
+                            continue;
                         }
-                        msg = new ACLMessage(ACLMessage.REQUEST);
-                        msg.setConversationId("Dish-time");
-                        for (var dishAgent : dishAgents) {
-                            msg.addReceiver(dishAgent);
+                        if (dishProgress.stageStart < 0) {
+                            waitingDishCards.add(dishProgress.dishCard);
+                            continue;
                         }
+                        ArrayList<Operation> operations = dishProgress.dishCard.getOperations();
+                        int stageEnd = findStageEnd(operations, dishProgress.stageStart);
+                        double stageTime = 0;
+                        for (int i = dishProgress.stageStart; i < stageEnd; i++) {
+                            stageTime = Math.max(stageTime, operations.get(i).getTime() * SIMULATION_DECELERATION_FACTOR);
+                        }
+                        time += Math.max(0, stageTime - (SimulationClock.nanoTime() - dishProgress.stageStartedAt) / 1e9);
+                        if (stageEnd < operations.size()) {
+                            ACLMessage msg = timeCalculationRequest("Operations");
+                            msg.setProtocol(dishProgress.dishCard.getId() + ":" + stageEnd);
+                            setObjectToMsg(msg, new ArrayList<>(operations.subList(stageEnd, operations.size())));
+                            send(msg);
+                            requestsCount++;
+                        }
+                    }
+                    if (!waitingDishCards.isEmpty()) {
+                        ACLMessage msg = timeCalculationRequest("DishCards");
+                        setObjectToMsg(msg, waitingDishCards);
                         send(msg);
-                        step = 1;
-                    } else {
-                        block();
+                        requestsCount++;
+                    }
+                    if (requestsCount == 0) {
+                        updateEta();
+                        break;
                     }
+                    step = 1;
                 }
                 case 1 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Dish-time"));
-                    msg = receive(mt);
+                    MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchConversationId("Time-calculation"),
+                            MessageTemplate.MatchInReplyTo(requestID));
+                    ACLMessage msg = receive(mt);
                     if (msg != null) {
+                        time += Double.parseDouble(msg.getContent());
                         repliesCount++;
-                        if (msg.getOntology().equals("Time")) {
-                            time += Double.parseDouble(msg.getContent());
-                        } else {
-                            dishCards.add(getObjectFromMsg(msg));
-                        }
-                        if (repliesCount >= dishAgents.length) {
-                            if (dishCards.size() == 0) {
-                                reply.setContent(String.valueOf(time));
-                                send(reply);
-                                step = 0;
-                            }
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Time-calculation");
-                            setObjectToMsg(msg, dishCards);
-                            msg.setOntology("DishCards");
-                            msg.addReceiver(find("Menu")[0]);
-                            send(msg);
-                            step = 2;
+                        if (repliesCount >= requestsCount) {
+                            updateEta();
+                            step = 0;
                         }
                     } else {
                         block();
                     }
                 }
-                case 2 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Time-calculation"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        time += Double.parseDouble(msg.getContent());
-                        reply.setContent(String.valueOf(time));
-                        send(reply);
-                        step = 0;
-                    } else {
-                        block();
-                    }
+            }
+        }
+
+        /**
+         * Метод создает запрос к агенту меню на расчет времени
+         * @param ontology - что нужно рассчитать ('Operations' или 'DishCards')
+         * @return - запрос
+         */
+        private ACLMessage timeCalculationRequest(String ontology) {
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            msg.setConversationId("Time-calculation");
+            msg.setOntology(ontology);
+            msg.setReplyWith(requestID);
+            msg.addReceiver(find("Menu")[0]);
+            return msg;
+        }
+
+        /**
+         * Метод сохраняет рассчитанную оценку и отвечает посетителю, если он ждал первого расчета
+         */
+        private void updateEta() {
+            etaDeadline = deadlineAfter(time);
+            etaCalculatedAt = SimulationClock.nanoTime();
+            for (var reply : pendingTimeReplies) {
+                reply.setContent(String.valueOf(secondsUntil(etaDeadline)));
+                send(reply);
+            }
+            pendingTimeReplies.clear();
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику проверки устаревания оценки оставшегося времени заказа:
+     * оценка, не пересчитанная по сообщениям агентов блюд за ORDER_ETA_STALENESS_THRESHOLD,
+     * пересчитывается заново (агент меню при этом актуализирует снимок кухни)
+     */
+    private class EtaStalenessCheckingBehaviour extends WheelWakerBehaviour {
+        public EtaStalenessCheckingBehaviour(long delay) {
+            super(OrderAgent.this, delay);
+        }
+
+        @Override
+        protected void onWake() {
+            if (ended) {
+                return;
+            }
+            long age = etaCalculatedAt == 0 ? 0 : (SimulationClock.nanoTime() - etaCalculatedAt) / 1_000_000;
+            if (age >= ORDER_ETA_STALENESS_THRESHOLD) {
+                outdateEta();
+                age = 0;
+            }
+            addBehaviour(new EtaStalenessCheckingBehaviour(Math.max(1, ORDER_ETA_STALENESS_THRESHOLD - age)));
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику распознавания оставшегося времени до приготовления всего заказа.
+     * Посетителю сообщается последняя оценка, поддерживаемая агентом заказа, поэтому ответ не требует
+     * опроса агентов блюд, процессов и операций (ждать приходится только первого расчета оценки)
+     */
+    private class OrderTimeRecognitionBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Order-time"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                ACLMessage reply = msg.createReply();
+                if (!ended && etaCalculatedAt == 0) {
+                    pendingTimeReplies.add(reply);
+                    return;
                 }
+                reply.setContent(ended ? "0" : String.valueOf(secondsUntil(etaDeadline)));
+                send(reply);
+            } else {
+                block();
             }
         }
     }
@@ -230,6 +421,7 @@ public class OrderAgent extends RestaurantAgent {
             ACLMessage msg = receive(mt);
             if (msg != null) {
                 ended = true;
+                notifyStateChanged();
                 report("заказ был отменен!");
                 msg = new ACLMessage(ACLMessage.REQUEST);
                 msg.setConversationId("Stop-cooking");
@@ -1,8 +1,12 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.AgentPool;
 import hse.java.kdz.jade.restaurant.tools.AgentTools;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
 import hse.java.kdz.jade.restaurant.types.Operation;
+import hse.java.kdz.jade.restaurant.types.OperationTask;
 import hse.java.kdz.jade.restaurant.types.ProcessReport;
+import hse.java.kdz.jade.restaurant.types.ProcessTask;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
@@ -11,15 +15,16 @@ import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.LinkedHashMap;
 
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.findStageEnd;
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.getAndIncrementOperationsCount;
 
 /**
  * Класс агента процесса.
  * Поведения агента:
- * 1) Выполнить весь процесс приготовления блюда
- * 2) Сообщить агенту блюда о завершении процесса приготовления
+ * 1) Выполнить весь процесс приготовления блюда (операции одного этапа выполняются параллельно)
+ * 2) Сообщать агенту блюда о начале каждого этапа и о завершении процесса приготовления
  * 3) Отменить процесс приготовления (по запросу от агента блюда)
  */
 public class ProcessAgent extends RestaurantAgent {
@@ -40,9 +45,23 @@ public class ProcessAgent extends RestaurantAgent {
      */
     private int processID;
     /**
-     * Индекс текущей операции в процессе
+     * Агент блюда, запустивший процесс
+     */
+    private AID dishAgent;
+    /**
+     * Выполняющиеся операции текущего этапа процесса
+     * Ключ - id операции
+     * Значение - агент операции (null, пока агент не сообщил о готовности)
+     */
+    private final LinkedHashMap<Integer, AID> operationAgents = new LinkedHashMap<>();
+    /**
+     * Индекс первой операции текущего этапа в процессе
      */
     private int currentOperation = 0;
+    /**
+     * Индекс первой операции следующего этапа в процессе
+     */
+    private int stageEnd = 0;
     /**
      * Отменен ли процесс
      */
@@ -51,45 +70,119 @@ public class ProcessAgent extends RestaurantAgent {
      * Отчёт о процессе (сохраняется в process_log.json)
      */
     private ProcessReport processReport;
+    /**
+     * Является ли агент исполнителем из пула
+     */
+    private boolean pooled = false;
+    /**
+     * Выполняет ли агент задание в данный момент
+     */
+    private boolean active = false;
 
     @Override
     protected void setup() {
-        operations = (ArrayList<Operation>) getArguments()[0];
-        orderedDishID = (int) getArguments()[1];
-        dishCardID = (int) getArguments()[2];
-        processID = (int) getArguments()[3];
-        register("Process", new Property("orderedDishID", orderedDishID), new Property("processID", processID));
+        if (getArguments() != null && getArguments().length > 0) {
+            ProcessTask task = (ProcessTask) getArguments()[0];
+            register("Process", new Property("orderedDishID", task.getOrderedDishID()), new Property("processID", task.getProcessID()));
+            startTask(task);
+        } else {
+            pooled = true;
+            register("Process");
+            report("был создан");
+            addBehaviour(new AssignmentBehaviour());
+        }
+        addBehaviour(new OperationAnnouncementBehaviour());
+        addBehaviour(new ProcessCancellationBehaviour());
+        addBehaviour(new DeleteBehaviour());
+    }
+
+    /**
+     * Метод сбрасывает состояние агента и начинает выполнение нового задания
+     * @param task - задание на выполнение процесса
+     */
+    private void startTask(ProcessTask task) {
+        operations = task.getOperations();
+        orderedDishID = task.getOrderedDishID();
+        dishCardID = task.getDishCardID();
+        processID = task.getProcessID();
+        dishAgent = task.getDishAgent();
+        operationAgents.clear();
+        currentOperation = 0;
+        stageEnd = 0;
+        cancelled = false;
+        active = true;
         report("был запущен");
+        announce(dishAgent, String.valueOf(processID));
         processReport = new ProcessReport(processID, orderedDishID);
-        processReport.setStarted(new Date());
+        processReport.setStarted(SimulationClock.now());
         processReport.setActive(true);
-        addBehaviour(new ProcessBehaviour());
-        addBehaviour(new ProcessCancellationBehaviour());
-        addBehaviour(new ProcessTimeRecognitionBehaviour());
-        addBehaviour(new DeleteBehaviour());
+        addBehaviour(new ProcessBehaviour(processID));
+    }
+
+    /**
+     * Метод завершения текущего задания.
+     * Агент из пула сохраняет отчёт о процессе и возвращается в пул
+     */
+    private void finishTask() {
+        active = false;
+        if (pooled) {
+            AgentTools.addProcessReport(processReport);
+            AgentPool.release("Process", getAID());
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику получения нового задания агентом из пула
+     */
+    private class AssignmentBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            ACLMessage msg = receive(assignmentTemplate("Process"));
+            if (msg != null) {
+                startTask(getObjectFromMsg(msg));
+            } else {
+                block();
+            }
+        }
     }
 
     /**
      * Класс поведения агента.
      * Поведение описывает логику процесса приготовления блюда.
-     * Все операции выполняются последовательно их соответственными агентами
-     * (Параллельность выполнения всех операций процесс легко реализуема
-     * путем создания нескольких агентов операций одновременно)
+     * Операции выполняются этапами (см. AgentTools.findStageEnd): все операции этапа
+     * одновременно выполняются их соответственными агентами, а следующий этап начинается
+     * после завершения всех операций текущего.
+     * О начале каждого этапа сообщается агенту блюда (содержимое - индекс первой операции этапа)
      */
     private class ProcessBehaviour extends Behaviour {
+        private final int taskID;
         private int step = 0;
 
+        public ProcessBehaviour(int taskID) {
+            this.taskID = taskID;
+        }
+
         @Override
         public void action() {
-            if (cancelled) {
+            if (cancelled || taskID != processID) {
                 step = 3;
             }
             switch (step) {
                 case 0 -> {
-                    int operationsCount = getAndIncrementOperationsCount();
-                    processReport.addProcessOperation(operationsCount);
-                    create(String.format("OperationAgent[dish:%d-%d]", orderedDishID, currentOperation), OperationAgent.class,
-                            operations.get(currentOperation), processID, orderedDishID, dishCardID, currentOperation, operationsCount);
+                    stageEnd = findStageEnd(operations, currentOperation);
+                    for (int i = currentOperation; i < stageEnd; i++) {
+                        int operationID = getAndIncrementOperationsCount();
+                        processReport.addProcessOperation(operationID);
+                        operationAgents.put(operationID, null);
+                        assign("Operation", String.format("OperationAgent[dish:%d-%d]", orderedDishID, i), OperationAgent.class,
+                                new OperationTask(operationID, operations.get(i), processID, orderedDishID, dishCardID, i, getAID()));
+                    }
+                    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+                    msg.setConversationId("Process-progress");
+                    msg.setContent(String.valueOf(currentOperation));
+                    msg.addReceiver(dishAgent);
+                    send(msg);
                     step = 1;
                 }
                 case 1 -> {
@@ -97,7 +190,14 @@ public class ProcessAgent extends RestaurantAgent {
                             MessageTemplate.MatchConversationId(String.valueOf(orderedDishID)));
                     ACLMessage msg = receive(mt);
                     if (msg != null) {
-                        currentOperation++;
+                        if (msg.getContent() == null || !operationAgents.containsKey(Integer.parseInt(msg.getContent()))) {
+                            return;
+                        }
+                        operationAgents.remove(Integer.parseInt(msg.getContent()));
+                        if (!operationAgents.isEmpty()) {
+                            return;
+                        }
+                        currentOperation = stageEnd;
                         if (currentOperation == operations.size()) {
                             step = 2;
                         } else {
@@ -108,13 +208,14 @@ public class ProcessAgent extends RestaurantAgent {
                     }
                 }
                 case 2 -> {
-                    processReport.setEnded(new Date());
+                    processReport.setEnded(SimulationClock.now());
                     processReport.setActive(false);
                     report("процесс приготовления блюда завершен");
                     ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-                    msg.addReceiver(find("Dish", new Property("orderedDishID", orderedDishID))[0]);
+                    msg.addReceiver(dishAgent);
                     msg.setConversationId(String.valueOf(orderedDishID));
                     myAgent.send(msg);
+                    finishTask();
                     step = 3;
                 }
             }
@@ -128,123 +229,66 @@ public class ProcessAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику отмены процесса приготовления блюда
+     * Поведение описывает логику получения сообщений о готовности от агентов операций процесса
      */
-    private class ProcessCancellationBehaviour extends Behaviour {
-        private boolean isDone = false;
-
+    private class OperationAnnouncementBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                    MessageTemplate.MatchConversationId("Process-cancellation"));
-            ACLMessage msg = receive(mt);
+            ACLMessage msg = receive(announcementTemplate());
             if (msg != null) {
-                cancelled = true;
-                processReport.setEnded(new Date());
-                processReport.setActive(false);
-                report("процесс был отменен!");
-                AID[] operationAgent = find("Operation", new Property("orderedDishID", orderedDishID),
-                        new Property("currentOperation", currentOperation));
-                if (operationAgent.length > 0) {
-                    msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Operation-cancellation");
-                    msg.addReceiver(operationAgent[0]);
-                    myAgent.send(msg);
+                if (!operationAgents.containsKey(Integer.parseInt(msg.getContent()))) {
+                    cancelOperation(msg.getSender(), msg.getContent());
+                    return;
+                }
+                operationAgents.put(Integer.parseInt(msg.getContent()), msg.getSender());
+                if (cancelled) {
+                    cancelOperation(msg.getSender(), msg.getContent());
                 }
-                isDone = true;
             } else {
                 block();
             }
         }
+    }
 
-        @Override
-        public boolean done() {
-            return isDone;
-        }
+    /**
+     * Метод отмены выполнения операции
+     * @param operationAgent - агент, выполняющий операцию
+     * @param operationID - id отменяемой операции
+     */
+    private void cancelOperation(AID operationAgent, String operationID) {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setConversationId("Operation-cancellation");
+        msg.setContent(operationID);
+        msg.addReceiver(operationAgent);
+        send(msg);
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику распознавания оставшегося времени до завершения процесса
+     * Поведение описывает логику отмены процесса приготовления блюда
      */
-    private class ProcessTimeRecognitionBehaviour extends CyclicBehaviour {
-        private int step = 0;
-        private double time = 0;
-        MessageTemplate mt;
-        ACLMessage msg;
-        ACLMessage reply;
-
+    private class ProcessCancellationBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            switch (step) {
-                case 0 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Process-time"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        reply = msg.createReply();
-                        AID[] currentOperationAgent = find("Operation", new Property("orderedDishID", orderedDishID), new Property("currentOperation", currentOperation));
-                        if (currentOperationAgent.length > 0) {
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Operation-time");
-                            msg.addReceiver(currentOperationAgent[0]);
-                            send(msg);
-                            step = 1;
-                            break;
-                        }
-                        step = 2;
-                    } else {
-                        block();
-                    }
-                }
-                case 1 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Operation-time"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        time += Double.parseDouble(msg.getContent());
-                        if (currentOperation >= operations.size() - 1) {
-                            reply.setContent(String.valueOf(time));
-                            send(reply);
-                            time = 0;
-                            step = 0;
-                            break;
-                        }
-                        step = 2;
-                    } else {
-                        block();
-                    }
-                }
-                case 2 -> {
-                    if (currentOperation == operations.size()) {
-                        reply.setContent(String.valueOf(time));
-                        send(reply);
-                        time = 0;
-                        step = 0;
-                        break;
-                    }
-                    msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Time-calculation");
-                    setObjectToMsg(msg, new ArrayList<>(operations.subList(currentOperation + 1, operations.size())));
-                    msg.setOntology("Operations");
-                    msg.addReceiver(find("Menu")[0]);
-                    send(msg);
-                    step = 2;
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Process-cancellation"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                if (!active || cancelled || !String.valueOf(processID).equals(msg.getContent())) {
+                    return;
                 }
-                case 3 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Time-calculation"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        time += Double.parseDouble(msg.getContent());
-                        reply.setContent(String.valueOf(time));
-                        send(reply);
-                        time = 0;
-                        step = 0;
-                    } else {
-                        block();
+                cancelled = true;
+                processReport.setEnded(SimulationClock.now());
+                processReport.setActive(false);
+                report("процесс был отменен!");
+                for (var operationAgent : operationAgents.entrySet()) {
+                    if (operationAgent.getValue() != null) {
+                        cancelOperation(operationAgent.getValue(), String.valueOf(operationAgent.getKey()));
                     }
                 }
+                finishTask();
+            } else {
+                block();
             }
         }
     }
@@ -262,10 +306,12 @@ public class ProcessAgent extends RestaurantAgent {
                     MessageTemplate.MatchConversationId("delete"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                if (processReport.getEnded() == null) {
-                    processReport.setEnded(new Date());
+                if (processReport != null && (active || !pooled)) {
+                    if (processReport.getEnded() == null) {
+                        processReport.setEnded(SimulationClock.now());
+                    }
+                    AgentTools.addProcessReport(processReport);
                 }
-                AgentTools.addProcessReport(processReport);
                 doDelete();
                 isDone = true;
             } else {
@@ -1,13 +1,14 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
 import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
-import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
-import static hse.java.kdz.jade.restaurant.tools.AgentTools.SIMULATION_DECELERATION_FACTOR;
-import static hse.java.kdz.jade.restaurant.tools.AgentTools.formatTime;
+import java.util.ArrayList;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 
 /**
  * Абстрактный класс агента ресурса.
@@ -16,6 +17,7 @@ import static hse.java.kdz.jade.restaurant.tools.AgentTools.formatTime;
  * 2) Отменить резервацию ресурса по запросу
  * 3) Сообщить о том, сколько осталось времени до конца резервации
  * 4) Освободить ресурс спустя заданное время
+ * 5) Сообщать подписчикам (агентам меню и планировщика кухни) о каждом изменении резервации ресурса
  */
 public abstract class ResourceAgent extends RestaurantAgent {
     /**
@@ -27,17 +29,34 @@ public abstract class ResourceAgent extends RestaurantAgent {
     }
 
     /**
-     * Время, оставшееся до конца резервации
+     * Момент окончания резервации (по монотонным часам, см. AgentTools.deadlineAfter).
+     * Оставшееся время резервации вычисляется по запросу
+     */
+    protected long reservationDeadline;
+    /**
+     * Поведение, освобождающее ресурс по окончании резервации
      */
-    protected double reservationTime;
+    private ReservationExpiryBehaviour expiryBehaviour;
     /**
      * Агент, зарезервировавший ресурс
      */
     protected AID reservedBy;
+    /**
+     * Агент операции, для которого ресурс зарезервирован планировщиком кухни (null, если такого нет)
+     */
+    protected AID reservedFor;
     /**
      * Статус ресурса
      */
     protected Status status;
+    /**
+     * Агенты, подписанные на изменения резервации ресурса
+     */
+    private final ArrayList<AID> subscribers = new ArrayList<>();
+    /**
+     * Онтология сообщений ресурса (тип оборудования или пустая строка для повара)
+     */
+    private String resourceOntology;
 
     /**
      * Класс поведения агента.
@@ -54,6 +73,7 @@ public abstract class ResourceAgent extends RestaurantAgent {
             this.resourceID = resourceID;
             this.conversationID = conversationID;
             this.ontology = ontology;
+            resourceOntology = ontology;
         }
 
         @Override
@@ -63,28 +83,25 @@ public abstract class ResourceAgent extends RestaurantAgent {
             if (msg != null) {
                 ACLMessage reply = msg.createReply();
                 reply.setOntology(ontology);
-                reply.setContent(String.valueOf(reservationTime));
+                reply.setContent(String.valueOf(status == Status.RESERVED ? secondsUntil(reservationDeadline) : 0.0));
                 if (msg.getPerformative() == ACLMessage.PROPOSE) {
                     if (status == Status.NOT_RESERVED) {
                         reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
                         reply.setContent(String.valueOf(resourceID));
                         status = Status.RESERVED;
+                        // Планировщик кухни резервирует ресурс для агента операции, указанного в параметре 'reserved-for':
+                        // резервацию может отменить и он, и сам планировщик.
+                        // Общую резервацию нескольких операций (без параметра) ведет только планировщик
                         reservedBy = msg.getSender();
-                        reservationTime = Double.parseDouble(msg.getContent()) * SIMULATION_DECELERATION_FACTOR;
+                        String reservedForName = msg.getUserDefinedParameter("reserved-for");
+                        reservedFor = reservedForName != null ? new AID(reservedForName, AID.ISGUID) : null;
+                        double reservationTime = Double.parseDouble(msg.getContent()) * SIMULATION_DECELERATION_FACTOR;
+                        reservationDeadline = deadlineAfter(reservationTime);
                         report(String.format("зарезервирован на %sc.", formatTime(reservationTime)));
                         myAgent.send(reply);
-                        addBehaviour(new TickerBehaviour(myAgent, 10) {
-                            @Override
-                            protected void onTick() {
-                                reservationTime -= 0.01;
-                                if (reservationTime <= 0) {
-                                    reservationTime = 0;
-                                    status = Status.NOT_RESERVED;
-                                    report("резервация окончена");
-                                    myAgent.removeBehaviour(this);
-                                }
-                            }
-                        });
+                        publishReservation();
+                        expiryBehaviour = new ReservationExpiryBehaviour(reservationDeadline);
+                        addBehaviour(expiryBehaviour);
                     } else {
                         reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
                         report("запрос на резервацию от " + msg.getSender().getLocalName() + " отклонен");
@@ -93,14 +110,68 @@ public abstract class ResourceAgent extends RestaurantAgent {
                 } else if (msg.getPerformative() == ACLMessage.REQUEST) {
                     reply.setPerformative(ACLMessage.INFORM);
                     myAgent.send(reply);
-                } else if (msg.getPerformative() == ACLMessage.CANCEL && msg.getSender().getName().equals(reservedBy.getName())) {
+                } else if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+                    if (!subscribers.contains(msg.getSender())) {
+                        subscribers.add(msg.getSender());
+                    }
+                    reply.setPerformative(ACLMessage.INFORM);
+                    reply.setConversationId("Reservation-change");
+                    reply.setContent(String.valueOf(status == Status.RESERVED ? reservationDeadline : 0));
+                    myAgent.send(reply);
+                } else if (msg.getPerformative() == ACLMessage.CANCEL && status == Status.RESERVED
+                        && (msg.getSender().equals(reservedBy) || msg.getSender().equals(reservedFor))) {
                     status = Status.NOT_RESERVED;
-                    reservationTime = 0;
+                    if (expiryBehaviour != null) {
+                        expiryBehaviour.stop();
+                        expiryBehaviour = null;
+                    }
                     report("резервация была отменена");
+                    publishReservation();
                 }
             } else {
                 block();
             }
         }
     }
+
+    /**
+     * Класс поведения агента.
+     * Поведение однократно пробуждается в момент окончания резервации и освобождает ресурс
+     */
+    private class ReservationExpiryBehaviour extends WheelWakerBehaviour {
+        private final long deadline;
+
+        public ReservationExpiryBehaviour(long deadline) {
+            super(ResourceAgent.this, Math.max(1, millisUntil(deadline)));
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void onWake() {
+            if (status == Status.RESERVED && reservationDeadline == deadline) {
+                status = Status.NOT_RESERVED;
+                expiryBehaviour = null;
+                report("резервация окончена");
+                publishReservation();
+            }
+        }
+    }
+
+    /**
+     * Метод сообщает подписчикам о текущей резервации ресурса.
+     * Содержимое сообщения - момент окончания резервации по часам симуляции (нс) или 0, если ресурс свободен
+     */
+    private void publishReservation() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId("Reservation-change");
+        msg.setOntology(resourceOntology);
+        msg.setContent(String.valueOf(status == Status.RESERVED ? reservationDeadline : 0));
+        for (var subscriber : subscribers) {
+            msg.addReceiver(subscriber);
+        }
+        send(msg);
+    }
 }
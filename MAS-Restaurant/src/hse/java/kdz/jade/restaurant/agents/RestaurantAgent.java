@@ -1,21 +1,35 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.AgentDirectory;
+import hse.java.kdz.jade.restaurant.tools.AgentPool;
+import hse.java.kdz.jade.restaurant.tools.MessageCodec;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.WarehouseRouter;
 import jade.core.AID;
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.behaviours.Behaviour;
 import jade.domain.DFService;
+import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.lang.acl.UnreadableException;
+import jade.proto.SubscriptionInitiator;
+import jade.util.leap.Iterator;
 import jade.wrapper.AgentController;
 import jade.wrapper.StaleProxyException;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_AGENT_POOLS;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_BINARY_MESSAGE_CODEC;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_LOCAL_MESSAGE_PASSING;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_VIRTUAL_CLOCK;
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.getAgentContainer;
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.stopSimulation;
 
@@ -29,6 +43,22 @@ public abstract class RestaurantAgent extends Agent {
      * Описание агента для взаимодействия с сервисом желтых страниц JADE
      */
     private DFAgentDescription dfd;
+    /**
+     * Поведения, ожидающие изменения внутреннего состояния агента
+     */
+    private final ArrayList<Behaviour> stateWaiters = new ArrayList<>();
+
+    /**
+     * Метод переопределяет создание очереди сообщений агента,
+     * чтобы часы симуляции могли отслеживать простой агентов
+     */
+    @Override
+    protected MessageQueue createMessageQueue() {
+        if (!USE_VIRTUAL_CLOCK) {
+            return super.createMessageQueue();
+        }
+        return new SimulationClock.ActivityTrackingQueue(getQueueSize());
+    }
 
     /**
      * Метод регистрации 'сервиса' агента в сервисе желтых страниц JADE
@@ -50,6 +80,7 @@ public abstract class RestaurantAgent extends Agent {
         while (!success) {
             try {
                 DFService.register(this, dfd);
+                AgentDirectory.register(dfd);
                 success = true;
             } catch (Exception e) {
                 count++;
@@ -72,6 +103,7 @@ public abstract class RestaurantAgent extends Agent {
      */
     public void deregister() {
         if (dfd != null) {
+            AgentDirectory.remove(getAID());
             try {
                 DFService.deregister(this, dfd);
             } catch (Exception e) {
@@ -81,12 +113,19 @@ public abstract class RestaurantAgent extends Agent {
     }
 
     /**
-     * Метод поиска других агентов, агента в сервисе желтых страниц JADE
+     * Метод поиска других агентов, агента в сервисе желтых страниц JADE.
+     * Сначала поиск выполняется в локальном кэше AgentDirectory (он помнит и пустые ответы сервиса),
+     * и только в случае промаха выполняется запрос к самому сервису
      * @param name       - имя, предоставляемого агентом сервиса
      * @param properties - свойства, описывающие сервис
      */
     public AID[] find(String name, Property... properties) {
-        AID[] agents = new AID[0];
+        AID[] agents = AgentDirectory.lookup(name, properties);
+        if (agents != null) {
+            return agents;
+        }
+        long version = AgentDirectory.getVersion(name);
+        agents = new AID[0];
         DFAgentDescription template = new DFAgentDescription();
         ServiceDescription sd = new ServiceDescription();
         sd.setName(name);
@@ -102,6 +141,10 @@ public abstract class RestaurantAgent extends Agent {
                 agents = new AID[result.length];
                 for (int i = 0; i < result.length; ++i) {
                     agents[i] = result[i].getName();
+                    AgentDirectory.put(result[i]);
+                }
+                if (result.length == 0) {
+                    AgentDirectory.putEmpty(version, name, properties);
                 }
                 success = true;
             } catch (Exception fe) {
@@ -126,12 +169,28 @@ public abstract class RestaurantAgent extends Agent {
      * @param name - имя агента в системе
      * @param tClass - класс создаваемого агента
      * @param args - объекты, передаваемые агенту при его инициализации
+     * @return - AID созданного агента (null, если агента создать не удалось)
+     */
+    public <T> AID create(String name, Class<T> tClass, Object... args) {
+        AID agent = launch(name, tClass, args);
+        if (agent == null) {
+            stopSimulation(this);
+        }
+        return agent;
+    }
+
+    /**
+     * Метод создания и запуска нового агента в платформе JADE без остановки симуляции при ошибке.
+     * Обращается только к контейнеру агентов, поэтому может вызываться не из потока агента
+     * @param name - имя агента в системе
+     * @param tClass - класс создаваемого агента
+     * @param args - объекты, передаваемые агенту при его инициализации
+     * @return - AID созданного агента (null, если агента создать не удалось)
      */
-    public <T> void create(String name, Class<T> tClass, Object... args) {
+    protected static <T> AID launch(String name, Class<T> tClass, Object... args) {
         AgentController ac;
-        boolean success = false;
         int count = 0;
-        while (!success) {
+        while (true) {
             try {
                 if (count > 0) {
                     name += "[" + count + "]";
@@ -142,14 +201,13 @@ public abstract class RestaurantAgent extends Agent {
                 report += "\t-Некоторые имена агентов совпадают (" + name + ")\n";
                 report += "\t-Проверьте ваши входные файлы на уникальность значений";
                 System.out.println(report);
-                stopSimulation(this);
-                return;
+                return null;
             }
             try {
                 ac.start();
-                success = true;
+                return new AID(ac.getName(), AID.ISGUID);
             } catch (StaleProxyException e) {
-                sleep(200);
+                SimulationClock.sleep(200);
                 count++;
                 if (count > 10) {
                     String report = "=================ВНУТРЕННЯЯ ОШИБКА ПЛАТФОРМЫ JADE================\n";
@@ -157,22 +215,158 @@ public abstract class RestaurantAgent extends Agent {
                     report += "\t-Просто перезапустите симуляцию. Если это не поможет, то попробуйте увеличить\n";
                     report += "\t значение параметра 'SIMULATION_DECELERATION_FACTOR";
                     System.out.println(report);
-                    stopSimulation(this);
-                    return;
+                    return null;
                 }
             }
         }
     }
 
     /**
-     * Метод для остановки агента на заданное время в миллисекундах
+     * Метод передачи задания агенту-исполнителю.
+     * Если включены пулы агентов, то задание получает свободный агент из пула
+     * (или новый агент, который затем пополнит пул), иначе для задания создаётся отдельный агент
+     * @param serviceName - имя сервиса исполнителей
+     * @param agentName - имя отдельного агента для задания
+     * @param tClass - класс агента-исполнителя
+     * @param task - задание
+     */
+    protected <T> void assign(String serviceName, String agentName, Class<T> tClass, Serializable task) {
+        if (!USE_AGENT_POOLS) {
+            create(agentName, tClass, task);
+            return;
+        }
+        AID worker = AgentPool.acquire(serviceName);
+        if (worker == null) {
+            worker = create(AgentPool.nextWorkerName(serviceName), tClass);
+        }
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setConversationId(serviceName + "-assignment");
+        msg.addReceiver(worker);
+        setObjectToMsg(msg, task);
+        send(msg);
+    }
+
+    /**
+     * Метод, которым созданный агент сообщает о своей готовности создавшему его агенту.
+     * Позволяет агенту-родителю узнать AID своего потомка без обращения к сервису желтых страниц
+     * @param parent - агент, создавший данного агента
+     */
+    protected void announce(AID parent) {
+        announce(parent, "");
+    }
+
+    /**
+     * Метод, которым агент-исполнитель сообщает о принятии задания агенту, выдавшему задание
+     * @param parent - агент, выдавший задание
+     * @param taskID - id принятого задания
+     */
+    protected void announce(AID parent, String taskID) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId("Announcement");
+        msg.setContent(taskID);
+        msg.addReceiver(parent);
+        send(msg);
+    }
+
+    /**
+     * Метод для поиска агента склада, которому принадлежит тип продукта
+     * @param productType - тип продукта
+     * @return - агент шарда склада
+     */
+    protected AID findWarehouse(int productType) {
+        return find("Warehouse", new Property("shard", WarehouseRouter.shardOf(productType)))[0];
+    }
+
+    /**
+     * Метод подписывает агента на изменения резервации ресурсов (см. ResourceAgent).
+     * Каждый агент ресурса сразу отвечает текущей резервацией и далее сообщает о каждом её изменении
+     * @param resourceAgents - агенты ресурсов
+     * @param conversationId - id диалога резервации ресурсов
+     */
+    protected void subscribe(AID[] resourceAgents, String conversationId) {
+        ACLMessage msg = new ACLMessage(ACLMessage.SUBSCRIBE);
+        msg.setConversationId(conversationId);
+        for (var resourceAgent : resourceAgents) {
+            msg.addReceiver(resourceAgent);
+        }
+        send(msg);
+    }
+
+    /**
+     * Метод возвращает на склад все продукты, зарезервированные для заказанного блюда
+     * @param orderedDishID - id заказанного блюда
+     */
+    protected void releaseProducts(int orderedDishID) {
+        settleReservation(ACLMessage.CANCEL, "Reservation-release", orderedDishID);
+    }
+
+    /**
+     * Метод окончательно списывает со склада все продукты, зарезервированные для заказанного блюда
+     * @param orderedDishID - id заказанного блюда
+     */
+    protected void commitProducts(int orderedDishID) {
+        settleReservation(ACLMessage.CONFIRM, "Reservation-commit", orderedDishID);
+    }
+
+    private void settleReservation(int performative, String conversationId, int orderedDishID) {
+        ACLMessage msg = new ACLMessage(performative);
+        msg.setConversationId(conversationId);
+        msg.setContent(String.valueOf(orderedDishID));
+        for (var warehouseAgent : find("Warehouse")) {
+            msg.addReceiver(warehouseAgent);
+        }
+        send(msg);
+    }
+
+    /**
+     * Метод возвращает шаблон сообщения с заданием для агента-исполнителя из пула
+     * @param serviceName - имя сервиса исполнителей
+     */
+    protected static MessageTemplate assignmentTemplate(String serviceName) {
+        return MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                MessageTemplate.MatchConversationId(serviceName + "-assignment"));
+    }
+
+    /**
+     * Метод возвращает шаблон сообщения о готовности агента-потомка
+     */
+    protected static MessageTemplate announcementTemplate() {
+        return MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchConversationId("Announcement"));
+    }
+
+    /**
+     * Метод блокирует поведение до изменения внутреннего состояния агента (см. notifyStateChanged).
+     * Вызывается из action() поведения вместо повторной проверки условия в холостом цикле
+     * @param behaviour - ожидающее поведение
+     */
+    protected void waitForStateChange(Behaviour behaviour) {
+        if (!stateWaiters.contains(behaviour)) {
+            stateWaiters.add(behaviour);
+        }
+        behaviour.block();
+    }
+
+    /**
+     * Метод пробуждает все поведения, ожидающие изменения внутреннего состояния агента
+     */
+    protected void notifyStateChanged() {
+        if (stateWaiters.isEmpty()) {
+            return;
+        }
+        ArrayList<Behaviour> waiters = new ArrayList<>(stateWaiters);
+        stateWaiters.clear();
+        for (var behaviour : waiters) {
+            behaviour.restart();
+        }
+    }
+
+    /**
+     * Метод для остановки агента на заданное время в миллисекундах (по часам симуляции, см. SimulationClock.sleep)
      * @param millis - количество миллисекунд
      */
     void sleep(long millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException ignored) {
-        }
+        SimulationClock.sleep(millis);
     }
 
     /**
@@ -182,6 +376,7 @@ public abstract class RestaurantAgent extends Agent {
     protected void takeDown() {
         report("уничтожен");
         deregister();
+        MessageCodec.releaseReferences(getAID());
     }
 
 
@@ -201,8 +396,11 @@ public abstract class RestaurantAgent extends Agent {
      */
     protected <T> T getObjectFromMsg(ACLMessage msg) {
         try {
+            if (USE_BINARY_MESSAGE_CODEC || MessageCodec.isReference(msg.getByteSequenceContent())) {
+                return (T) MessageCodec.decode(msg.getByteSequenceContent(), getAID());
+            }
             return (T) msg.getContentObject();
-        } catch (UnreadableException e) {
+        } catch (UnreadableException | IOException e) {
             System.out.println("Ошибка десериализации объекта из сообщения!");
             stopSimulation(this);
             return null;
@@ -210,20 +408,68 @@ public abstract class RestaurantAgent extends Agent {
     }
 
     /**
-     * Метод для сериализации объекта заданного типа в сообщение
+     * Метод для сериализации объекта заданного типа в сообщение.
+     * Если единственный получатель сообщения находится в том же контейнере, то объект передается по ссылке,
+     * поэтому получатель сообщения должен быть задан до вызова метода
      * @param msg - сообщение
      * @param t - сериализуемый объект
      * @param <T> - тип объекта
      */
     protected <T extends Serializable> void setObjectToMsg(ACLMessage msg, T t) {
         try {
-            msg.setContentObject(t);
+            AID receiver = USE_LOCAL_MESSAGE_PASSING ? findLocalReceiver(msg) : null;
+            byte[] reference = receiver != null ? MessageCodec.encodeReference(t, receiver) : null;
+            if (reference != null) {
+                msg.setByteSequenceContent(reference);
+            } else if (USE_BINARY_MESSAGE_CODEC) {
+                msg.setByteSequenceContent(MessageCodec.encode(t));
+            } else {
+                msg.setContentObject(t);
+            }
         } catch (IOException e) {
             System.out.println("Ошибка сериализации объекта в сообщение!");
             stopSimulation(this);
         }
     }
 
+    /**
+     * Метод проверяет, что у сообщения единственный получатель и он находится в том же контейнере, что и агент
+     * (зарегистрировался в сервисе желтых страниц из этого контейнера)
+     * @param msg - сообщение
+     * @return - получатель сообщения или null, если условие не выполнено
+     */
+    private AID findLocalReceiver(ACLMessage msg) {
+        Iterator receivers = msg.getAllReceiver();
+        if (!receivers.hasNext()) {
+            return null;
+        }
+        AID receiver = (AID) receivers.next();
+        if (receivers.hasNext() || !AgentDirectory.isLocal(receiver)) {
+            return null;
+        }
+        return receiver;
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику подписки на уведомления сервиса желтых страниц JADE,
+     * поддерживающую локальный кэш AgentDirectory в актуальном состоянии
+     */
+    protected class DirectorySubscriptionBehaviour extends SubscriptionInitiator {
+        public DirectorySubscriptionBehaviour(Agent a) {
+            super(a, DFService.createSubscriptionMessage(a, a.getDefaultDF(), new DFAgentDescription(), null));
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            try {
+                AgentDirectory.update(DFService.decodeNotification(inform.getContent()));
+            } catch (FIPAException e) {
+                report("не удалось обработать уведомление сервиса желтых страниц");
+            }
+        }
+    }
+
     /**
      * Класс поведения агента.
      * Поведение описывает логику удаления агента
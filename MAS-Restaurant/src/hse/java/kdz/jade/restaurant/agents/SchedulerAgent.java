@@ -0,0 +1,492 @@
+package hse.java.kdz.jade.restaurant.agents;
+
+import hse.java.kdz.jade.restaurant.tools.DataParser;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
+import hse.java.kdz.jade.restaurant.types.Operation;
+import jade.core.AID;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.OPERATION_BATCHING_WINDOW;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.OPERATION_BATCH_CAPACITIES;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.findStageEnd;
+
+/**
+ * Класс агента планировщика кухни.
+ * Планировщик - единственный агент, резервирующий поваров и оборудование: он знает, какие ресурсы свободны
+ * (агенты ресурсов сообщают ему о каждом изменении резервации), и назначает операции повара
+ * и оборудование одним решением, поэтому агенты операций не соревнуются за ресурсы.
+ * Операции назначаются списочным алгоритмом: как только освобождается ресурс, из очереди выбирается
+ * первая операция, для которой есть и свободный повар, и свободное оборудование нужного типа.
+ * Очередь упорядочена по оставшемуся времени приготовления блюда, начиная с этой операции
+ * (см. DishCard и AgentTools.findStageEnd), так что первыми выполняются операции самых длинных цепочек.
+ * Поведения агента:
+ * 1) Поставить операцию в очередь на назначение ресурсов (по запросу от агента операции)
+ * 2) Убрать операцию из очереди (по запросу от агента операции при её отмене)
+ * 3) Отслеживать освобождение ресурсов и назначать операциям повара и оборудование
+ * 4) Объединять одинаковые операции разных заказов в одну резервацию повара и оборудования
+ * 5) Получать ответы агентов ресурсов: пересылать подтверждения резервации агентам операций,
+ * а при отказе ресурса отменять остальные резервации назначения и возвращать операции в очередь
+ */
+public class SchedulerAgent extends RestaurantAgent {
+    /**
+     * Свободные агенты поваров
+     */
+    private final LinkedHashSet<AID> freeCooks = new LinkedHashSet<>();
+    /**
+     * Свободные агенты оборудования
+     * Ключ - тип оборудования
+     * Значение - агенты оборудования этого типа
+     */
+    private final HashMap<Integer, LinkedHashSet<AID>> freeEquipment = new HashMap<>();
+    /**
+     * Оставшееся время приготовления блюда, начиная с каждой операции
+     * Ключ - id карточки блюда
+     * Значение - время по номеру операции в карточке
+     */
+    private final HashMap<Integer, double[]> remainingTimes = new HashMap<>();
+    /**
+     * Операции карточек блюд
+     * Ключ - id карточки блюда
+     */
+    private final HashMap<Integer, List<Operation>> cardsOperations = new HashMap<>();
+    /**
+     * Очередь операций, ожидающих назначения ресурсов
+     */
+    private final TreeSet<SchedulingRequest> pendingRequests = new TreeSet<>(
+            Comparator.comparingDouble(SchedulingRequest::remainingTime).reversed()
+                    .thenComparingLong(SchedulingRequest::sequence));
+    /**
+     * Запросы из очереди и запросы, ожидающие ответа агентов ресурсов, по агенту и id операции ('имя агента:id операции')
+     */
+    private final HashMap<String, SchedulingRequest> requestsByOperation = new HashMap<>();
+    /**
+     * Очереди одинаковых операций, которые могут быть объединены в одну резервацию
+     * Ключ - тип операции (старшие 32 бита) и тип оборудования
+     * Значение - запросы в порядке общей очереди
+     */
+    private final HashMap<Long, TreeSet<SchedulingRequest>> pendingBatches = new HashMap<>();
+    /**
+     * Назначения ресурсов, ожидающие ответа агентов ресурсов
+     * Ключ - id предложения резервации
+     */
+    private final HashMap<String, Assignment> assignments = new HashMap<>();
+    /**
+     * Количество сделанных назначений (id предложения резервации)
+     */
+    private long assignmentsCount = 0;
+    /**
+     * Количество поступивших запросов (порядковый номер запроса среди равных по времени)
+     */
+    private long requestsCount = 0;
+    /**
+     * Момент ближайшего запланированного повторного назначения ресурсов (по часам симуляции)
+     */
+    private long wakeTime = Long.MAX_VALUE;
+
+    @Override
+    protected void setup() {
+        for (var dishCard : DataParser.Data.dishCards) {
+            List<Operation> operations = dishCard.getOperations();
+            ArrayList<Integer> stageStarts = new ArrayList<>();
+            for (int i = 0; i < operations.size(); i = findStageEnd(operations, i)) {
+                stageStarts.add(i);
+            }
+            // Оставшееся время - время операции и наибольшие времена операций всех следующих этапов
+            double[] times = new double[operations.size() + 1];
+            double tailTime = 0;
+            for (int k = stageStarts.size() - 1; k >= 0; k--) {
+                int stageEnd = k + 1 < stageStarts.size() ? stageStarts.get(k + 1) : operations.size();
+                double stageTime = 0;
+                for (int i = stageStarts.get(k); i < stageEnd; i++) {
+                    times[i] = tailTime + operations.get(i).getTime();
+                    stageTime = Math.max(stageTime, operations.get(i).getTime());
+                }
+                tailTime += stageTime;
+            }
+            remainingTimes.put(dishCard.getId(), times);
+            cardsOperations.put(dishCard.getId(), operations);
+        }
+        register("Scheduler");
+        report("был создан");
+        addBehaviour(new ResourceTrackingBehaviour());
+        addBehaviour(new SchedulingBehaviour());
+        addBehaviour(new ReservationReplyBehaviour());
+        addBehaviour(new DeleteBehaviour());
+        subscribe(find("Cook"), "Cook-reserving");
+        subscribe(find("Equipment"), "Equipment-reserving");
+    }
+
+    /**
+     * Запрос операции на назначение ресурсов
+     * @param operationAgent - агент операции
+     * @param operationID - id операции
+     * @param operationType - тип операции
+     * @param equipmentType - тип оборудования (-1, если оборудование не требуется)
+     * @param time - время операции
+     * @param remainingTime - оставшееся время приготовления блюда, начиная с этой операции
+     * @param sequence - порядковый номер запроса
+     * @param receivedAt - момент поступления запроса (по часам симуляции)
+     */
+    private record SchedulingRequest(AID operationAgent, String operationID, int operationType, int equipmentType, double time,
+                                     double remainingTime, long sequence, long receivedAt) {
+        /**
+         * Метод для получения ключа очереди одинаковых операций
+         */
+        long batchKey() {
+            return ((long) operationType << 32) | (equipmentType & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Метод для получения количества одинаковых операций, которые можно выполнить одной резервацией
+         */
+        int batchCapacity() {
+            return Math.max(1, OPERATION_BATCH_CAPACITIES.getOrDefault(equipmentType, 1));
+        }
+
+        /**
+         * Метод для получения ключа запроса ('имя агента:id операции')
+         */
+        String key() {
+            return operationAgent.getName() + ":" + operationID;
+        }
+    }
+
+    /**
+     * Назначение ресурсов операциям, ожидающее ответа агентов ресурсов
+     */
+    private static class Assignment {
+        /**
+         * Запросы операций
+         */
+        private final ArrayList<SchedulingRequest> batch;
+        /**
+         * Количество зарезервированных ресурсов (повар и, возможно, оборудование)
+         */
+        private final int resourcesCount;
+        /**
+         * Полученные ответы агентов ресурсов
+         */
+        private final ArrayList<ACLMessage> replies = new ArrayList<>();
+
+        Assignment(ArrayList<SchedulingRequest> batch, int resourcesCount) {
+            this.batch = batch;
+            this.resourcesCount = resourcesCount;
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику приема запросов агентов операций:
+     * операция ставится в очередь (REQUEST) или убирается из неё при отмене (CANCEL)
+     */
+    private class SchedulingBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            ACLMessage msg = receive(MessageTemplate.MatchConversationId("Scheduling"));
+            if (msg != null) {
+                String key = msg.getSender().getName() + ":" + msg.getReplyWith();
+                if (msg.getPerformative() == ACLMessage.REQUEST) {
+                    // Протокол запроса - 'id карточки блюда:номер операции в карточке'
+                    String[] position = msg.getProtocol().split(":");
+                    int dishCardID = Integer.parseInt(position[0]);
+                    int operationIndex = Integer.parseInt(position[1]);
+                    double[] times = remainingTimes.get(dishCardID);
+                    List<Operation> operations = cardsOperations.get(dishCardID);
+                    double time = Double.parseDouble(msg.getContent());
+                    SchedulingRequest request = new SchedulingRequest(msg.getSender(), msg.getReplyWith(),
+                            operations != null ? operations.get(operationIndex).getType() : -1,
+                            Integer.parseInt(msg.getOntology()), time,
+                            times != null ? times[operationIndex] : time, requestsCount++, SimulationClock.nanoTime());
+                    requestsByOperation.put(key, request);
+                    enqueueRequest(request);
+                    dispatch();
+                } else if (msg.getPerformative() == ACLMessage.CANCEL) {
+                    // Отмененная операция, ожидающая ответа агентов ресурсов, не вернется в очередь при отказе ресурса
+                    SchedulingRequest request = requestsByOperation.remove(key);
+                    if (request != null) {
+                        dequeueRequest(request);
+                    }
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику отслеживания свободных ресурсов.
+     * Агенты ресурсов сообщают о каждом изменении резервации: ресурс свободен, если момент окончания
+     * его резервации равен 0. Освобождение ресурса сразу запускает назначение ожидающих операций
+     */
+    private class ResourceTrackingBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Reservation-change"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                boolean free = Long.parseLong(msg.getContent()) == 0;
+                LinkedHashSet<AID> resources = freeResources(msg.getOntology());
+                if (free) {
+                    resources.add(msg.getSender());
+                    dispatch();
+                } else {
+                    resources.remove(msg.getSender());
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику получения ответов агентов ресурсов на предложения резервации.
+     * Когда ответили все ресурсы назначения, подтверждения пересылаются агентам операций
+     * (агент ресурса указывается получателем ответа). Если хотя бы один ресурс отказал,
+     * принятые резервации назначения отменяются, а его операции возвращаются в очередь
+     */
+    private class ReservationReplyBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(
+                    MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.ACCEPT_PROPOSAL),
+                            MessageTemplate.MatchPerformative(ACLMessage.REJECT_PROPOSAL)),
+                    MessageTemplate.or(MessageTemplate.MatchConversationId("Cook-reserving"),
+                            MessageTemplate.MatchConversationId("Equipment-reserving")));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                Assignment assignment = assignments.get(msg.getInReplyTo());
+                if (assignment == null) {
+                    return;
+                }
+                assignment.replies.add(msg);
+                if (assignment.replies.size() < assignment.resourcesCount) {
+                    return;
+                }
+                assignments.remove(msg.getInReplyTo());
+                boolean rejected = false;
+                for (var reply : assignment.replies) {
+                    if (reply.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
+                        rejected = true;
+                        break;
+                    }
+                }
+                if (rejected) {
+                    rejectAssignment(assignment);
+                } else {
+                    acceptAssignment(assignment);
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Метод для получения свободных ресурсов по онтологии сообщений ресурса
+     * @param ontology - тип оборудования или пустая строка для повара
+     * @return - свободные агенты ресурсов
+     */
+    private LinkedHashSet<AID> freeResources(String ontology) {
+        if (ontology == null || ontology.isEmpty()) {
+            return freeCooks;
+        }
+        return freeEquipment.computeIfAbsent(Integer.parseInt(ontology), k -> new LinkedHashSet<>());
+    }
+
+    /**
+     * Метод пересылает подтверждения резервации ресурсов агентам операций назначения
+     * @param assignment - назначение ресурсов
+     */
+    private void acceptAssignment(Assignment assignment) {
+        StringBuilder operationIDs = new StringBuilder();
+        for (var request : assignment.batch) {
+            requestsByOperation.remove(request.key());
+            if (operationIDs.length() > 0) {
+                operationIDs.append(",");
+            }
+            operationIDs.append(request.operationID());
+        }
+        for (var reply : assignment.replies) {
+            ACLMessage msg = new ACLMessage(ACLMessage.ACCEPT_PROPOSAL);
+            msg.setConversationId(reply.getConversationId());
+            msg.setContent(reply.getContent());
+            msg.setInReplyTo(operationIDs.toString());
+            msg.addReplyTo(reply.getSender());
+            for (var request : assignment.batch) {
+                msg.addReceiver(request.operationAgent());
+            }
+            send(msg);
+        }
+    }
+
+    /**
+     * Метод отменяет принятые резервации назначения, от которого отказался хотя бы один ресурс,
+     * и возвращает в очередь его операции, которые не были отменены.
+     * Принявший резервацию ресурс станет свободным после отмены, а отказавший - по окончании своей резервации
+     * (агент ресурса сообщит об этом); отказавший ресурс без резервации сразу снова считается свободным
+     * @param assignment - назначение ресурсов
+     */
+    private void rejectAssignment(Assignment assignment) {
+        for (var reply : assignment.replies) {
+            if (reply.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
+                ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+                cancel.setConversationId(reply.getConversationId());
+                cancel.addReceiver(reply.getSender());
+                send(cancel);
+            } else if (Double.parseDouble(reply.getContent()) == 0) {
+                freeResources(reply.getOntology()).add(reply.getSender());
+            }
+        }
+        int requeuedCount = 0;
+        for (var request : assignment.batch) {
+            if (requestsByOperation.get(request.key()) == request) {
+                enqueueRequest(request);
+                requeuedCount++;
+            }
+        }
+        report(String.format("получил отказ в резервации ресурса, операций возвращено в очередь: %d", requeuedCount));
+        dispatch();
+    }
+
+    /**
+     * Метод ставит запрос в очередь планировщика
+     * @param request - запрос операции
+     */
+    private void enqueueRequest(SchedulingRequest request) {
+        pendingRequests.add(request);
+        if (request.batchCapacity() > 1) {
+            pendingBatches.computeIfAbsent(request.batchKey(), k -> new TreeSet<>(pendingRequests.comparator())).add(request);
+        }
+    }
+
+    /**
+     * Метод убирает запрос из очередей планировщика
+     * @param request - запрос операции
+     */
+    private void dequeueRequest(SchedulingRequest request) {
+        pendingRequests.remove(request);
+        TreeSet<SchedulingRequest> batch = pendingBatches.get(request.batchKey());
+        if (batch != null) {
+            batch.remove(request);
+            if (batch.isEmpty()) {
+                pendingBatches.remove(request.batchKey());
+            }
+        }
+    }
+
+    /**
+     * Метод назначает ресурсы ожидающим операциям, пока есть свободные повара.
+     * Операции перебираются в порядке очереди; операция, для которой нет свободного оборудования,
+     * пропускается и остается в очереди, не занимая повара.
+     * Если оборудование операции вмещает несколько одинаковых операций (см. OPERATION_BATCH_CAPACITIES),
+     * вместе с ней назначаются ожидающие одинаковые операции. Пока их меньше вместимости оборудования,
+     * операция ждет новых не дольше OPERATION_BATCHING_WINDOW с момента поступления первой из них
+     */
+    private void dispatch() {
+        long now = SimulationClock.nanoTime();
+        long nextWakeTime = Long.MAX_VALUE;
+        // Объединенные операции убираются из очереди во время перебора, поэтому перебирается её копия
+        for (var request : new ArrayList<>(pendingRequests)) {
+            if (freeCooks.isEmpty()) {
+                break;
+            }
+            if (!pendingRequests.contains(request)) {
+                continue;
+            }
+            LinkedHashSet<AID> equipmentAgents = null;
+            if (request.equipmentType() != -1) {
+                equipmentAgents = freeEquipment.get(request.equipmentType());
+                if (equipmentAgents == null || equipmentAgents.isEmpty()) {
+                    continue;
+                }
+            }
+            ArrayList<SchedulingRequest> batch = new ArrayList<>();
+            batch.add(request);
+            if (request.batchCapacity() > 1) {
+                long firstReceivedAt = request.receivedAt();
+                for (var sameRequest : pendingBatches.get(request.batchKey())) {
+                    if (batch.size() >= request.batchCapacity()) {
+                        break;
+                    }
+                    if (sameRequest != request) {
+                        batch.add(sameRequest);
+                        firstReceivedAt = Math.min(firstReceivedAt, sameRequest.receivedAt());
+                    }
+                }
+                long batchDeadline = firstReceivedAt + OPERATION_BATCHING_WINDOW * 1_000_000L;
+                if (batch.size() < request.batchCapacity() && now < batchDeadline) {
+                    nextWakeTime = Math.min(nextWakeTime, batchDeadline);
+                    continue;
+                }
+            }
+            AID equipmentAgent = null;
+            if (equipmentAgents != null) {
+                equipmentAgent = equipmentAgents.iterator().next();
+                equipmentAgents.remove(equipmentAgent);
+            }
+            AID cookAgent = freeCooks.iterator().next();
+            freeCooks.remove(cookAgent);
+            for (var batchRequest : batch) {
+                dequeueRequest(batchRequest);
+            }
+            if (batch.size() > 1) {
+                report(String.format("объединил в одну резервацию одинаковых операций: %d", batch.size()));
+            }
+            String assignmentID = String.valueOf(assignmentsCount++);
+            assignments.put(assignmentID, new Assignment(batch, equipmentAgent != null ? 2 : 1));
+            if (equipmentAgent != null) {
+                reserve(equipmentAgent, "Equipment-reserving", assignmentID, batch);
+            }
+            reserve(cookAgent, "Cook-reserving", assignmentID, batch);
+        }
+        if (nextWakeTime < wakeTime) {
+            wakeTime = nextWakeTime;
+            addBehaviour(new WheelWakerBehaviour(this, Math.max(1, (nextWakeTime - now) / 1_000_000)) {
+                @Override
+                protected void onWake() {
+                    wakeTime = Long.MAX_VALUE;
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * Метод резервирует ресурс для операций.
+     * Агент ресурса отвечает о резервации планировщику (см. ReservationReplyBehaviour). Резервацию ресурса
+     * одной операцией (в том числе её отмену) далее ведет агент операции, а общая резервация нескольких операций
+     * заканчивается по истечении времени самой долгой из них
+     * @param resourceAgent - агент ресурса
+     * @param conversationId - id диалога резервации ресурса
+     * @param assignmentID - id назначения ресурсов
+     * @param batch - запросы операций
+     */
+    private void reserve(AID resourceAgent, String conversationId, String assignmentID, ArrayList<SchedulingRequest> batch) {
+        ACLMessage msg = new ACLMessage(ACLMessage.PROPOSE);
+        msg.setConversationId(conversationId);
+        double time = 0;
+        for (var request : batch) {
+            time = Math.max(time, request.time());
+        }
+        if (batch.size() == 1) {
+            msg.addUserDefinedParameter("reserved-for", batch.get(0).operationAgent().getName());
+        }
+        msg.setContent(String.valueOf(time));
+        msg.setReplyWith(assignmentID);
+        msg.addReceiver(resourceAgent);
+        send(msg);
+    }
+}
@@ -1,11 +1,17 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.AgentDirectory;
+import hse.java.kdz.jade.restaurant.tools.AgentPool;
 import hse.java.kdz.jade.restaurant.tools.DataParser;
+import hse.java.kdz.jade.restaurant.tools.LoadGenerator;
+import hse.java.kdz.jade.restaurant.tools.MessageCodec;
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.TimeEstimateCache;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
 import hse.java.kdz.jade.restaurant.types.VisitorOrder;
 import jade.core.AID;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.OneShotBehaviour;
-import jade.core.behaviours.WakerBehaviour;
 import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -29,11 +35,28 @@ public class SimulationAgent extends RestaurantAgent {
      * Заказы посетителей
      */
     private final ArrayList<VisitorOrder> visitorOrders = new ArrayList<>(DataParser.Data.visitorOrders);
+    /**
+     * Генератор синтетической нагрузки (null, если воспроизводятся заказы из файла)
+     */
+    private final LoadGenerator loadGenerator = LOAD_GENERATOR_VISITORS > 0 ? new LoadGenerator() : null;
+    /**
+     * Общее количество посетителей симуляции
+     */
+    private int visitorsCount;
+    /**
+     * Агент супервизора
+     */
+    private AID supervisorAgent;
+    /**
+     * Момент начала работы ресторана (по монотонным часам)
+     */
+    private long startTime;
 
     @Override
     protected void setup() {
         int activeResources = 0;
         register("Simulation");
+        addBehaviour(new DirectorySubscriptionBehaviour(this));
         report("был создан");
         report("создаю агентов ресторана...");
         for (var cook : DataParser.Data.cooks) {
@@ -48,16 +71,35 @@ public class SimulationAgent extends RestaurantAgent {
                 create(String.format("EquipmentAgent[%d](%s)", equipment.getId(), equipment.getName()), EquipmentAgent.class, equipment);
             }
         }
-        create("WarehouseAgent", WarehouseAgent.class);
-        while (find("Cook").length + find("Equipment").length + find("Warehouse").length < activeResources + 1) {
+        if (WAREHOUSE_SHARDS_COUNT > 1) {
+            for (int shard = 0; shard < WAREHOUSE_SHARDS_COUNT; shard++) {
+                create(String.format("WarehouseAgent[%d]", shard), WarehouseAgent.class, shard);
+            }
+        } else {
+            create("WarehouseAgent", WarehouseAgent.class, 0);
+        }
+        while (find("Cook").length + find("Equipment").length + find("Warehouse").length < activeResources + Math.max(1, WAREHOUSE_SHARDS_COUNT)) {
             sleep(250);
         }
         create("MenuAgent", MenuAgent.class);
-        create("SupervisorAgent", SupervisorAgent.class);
-        while (find("Menu").length + find("Supervisor").length < 2) {
+        if (USE_KITCHEN_SCHEDULER) {
+            create("SchedulerAgent", SchedulerAgent.class);
+        }
+        supervisorAgent = create("SupervisorAgent", SupervisorAgent.class);
+        if (USE_AGENT_POOLS) {
+            for (int i = 0; i < PROCESS_POOL_SIZE; ++i) {
+                AgentPool.release("Process", create(AgentPool.nextWorkerName("Process"), ProcessAgent.class));
+            }
+            for (int i = 0; i < OPERATION_POOL_SIZE; ++i) {
+                AgentPool.release("Operation", create(AgentPool.nextWorkerName("Operation"), OperationAgent.class));
+            }
+        }
+        while (find("Menu").length + find("Supervisor").length + find("Scheduler").length < (USE_KITCHEN_SCHEDULER ? 3 : 2)) {
             sleep(250);
         }
         sleep(1000);
+        visitorsCount = loadGenerator != null ? loadGenerator.getVisitorsCount() : visitorOrders.size();
+        startTime = System.nanoTime();
         System.out.println("=====================НАЧАЛО РАБОТЫ РЕСТОРАНА=====================");
         addBehaviour(new VisitorsFlowSimulationBehaviour());
         addBehaviour(new SimulationCompletionBehaviour());
@@ -71,19 +113,32 @@ public class SimulationAgent extends RestaurantAgent {
     private class VisitorsFlowSimulationBehaviour extends OneShotBehaviour {
         @Override
         public void action() {
-            if (visitorOrders.size() > 0) {
+            if (loadGenerator != null) {
+                if (loadGenerator.hasNext()) {
+                    VisitorOrder visitorOrder = loadGenerator.next();
+                    create("Visitor(" + visitorOrder.getVisitorName() + ")", VisitorAgent.class, visitorOrder, supervisorAgent, getAID());
+                    if (loadGenerator.getGeneratedCount() % 1000 == 0) {
+                        report(String.format("генератор нагрузки: посетителей=%d, частота прихода=%s/с.",
+                                loadGenerator.getGeneratedCount(), formatTime(loadGenerator.getAchievedArrivalRate())));
+                    }
+                    scheduleNextVisitor(loadGenerator.nextDelay());
+                }
+            } else if (visitorOrders.size() > 0) {
                 report("===новый посетитель!===");
                 VisitorOrder visitorOrder = visitorOrders.remove(0);
-                create("Visitor(" + visitorOrder.getVisitorName() + ")", VisitorAgent.class, visitorOrder);
-                int newVisitorIn = rand.nextInt((MAX_NEW_VISITOR_DELAY - MIN_NEW_VISITOR_DELAY) + 1) + MIN_NEW_VISITOR_DELAY;
-                addBehaviour(new WakerBehaviour(myAgent, newVisitorIn) {
-                    @Override
-                    protected void onWake() {
-                        addBehaviour(new VisitorsFlowSimulationBehaviour());
-                    }
-                });
+                create("Visitor(" + visitorOrder.getVisitorName() + ")", VisitorAgent.class, visitorOrder, supervisorAgent, getAID());
+                scheduleNextVisitor(rand.nextInt((MAX_NEW_VISITOR_DELAY - MIN_NEW_VISITOR_DELAY) + 1) + MIN_NEW_VISITOR_DELAY);
             }
         }
+
+        private void scheduleNextVisitor(long newVisitorIn) {
+            addBehaviour(new WheelWakerBehaviour(myAgent, newVisitorIn) {
+                @Override
+                protected void onWake() {
+                    addBehaviour(new VisitorsFlowSimulationBehaviour());
+                }
+            });
+        }
     }
 
 
@@ -123,14 +178,12 @@ public class SimulationAgent extends RestaurantAgent {
                                 for (var operationAgent : find("Operation", new Property("orderedDishID", visitorOrderedDish.getId()))) {
                                     msg.addReceiver(operationAgent);
                                 }
-                                for (var productAgent : find("Product", new Property("orderedDishID", visitorOrderedDish.getId()))) {
-                                    msg.addReceiver(productAgent);
-                                }
+                                commitProducts(visitorOrderedDish.getId());
                             }
                             send(msg);
                         }
                         repliesCount++;
-                        if (repliesCount >= DataParser.Data.visitorOrders.size()) {
+                        if (repliesCount >= visitorsCount) {
                             System.out.println("====================РАБОТА РЕСТОРАНА ЗАВЕРШЕНА===================");
                             step = 1;
                         }
@@ -159,9 +212,6 @@ public class SimulationAgent extends RestaurantAgent {
                     for (var agents : find("Equipment")) {
                         msg.addReceiver(agents);
                     }
-                    for (var agents : find("Product")) {
-                        msg.addReceiver(agents);
-                    }
                     for (var agents : find("Warehouse")) {
                         msg.addReceiver(agents);
                     }
@@ -171,6 +221,9 @@ public class SimulationAgent extends RestaurantAgent {
                     for (var agents : find("Supervisor")) {
                         msg.addReceiver(agents);
                     }
+                    for (var agents : find("Scheduler")) {
+                        msg.addReceiver(agents);
+                    }
                     send(msg);
                     sleep(2000);
                     int activeAgentsCount = 0;
@@ -179,12 +232,45 @@ public class SimulationAgent extends RestaurantAgent {
                     activeAgentsCount += find("Warehouse").length;
                     activeAgentsCount += find("Menu").length;
                     activeAgentsCount += find("Supervisor").length;
+                    activeAgentsCount += find("Scheduler").length;
                     activeAgentsCount += find("Order").length;
                     activeAgentsCount += find("Dish").length;
                     activeAgentsCount += find("Process").length;
                     activeAgentsCount += find("Operation").length;
-                    activeAgentsCount += find("Product").length;
                     if (activeAgentsCount == 0) {
+                        report(String.format("кэш желтых страниц: попаданий=%d, промахов=%d",
+                                AgentDirectory.getHitsCount(), AgentDirectory.getMissesCount()));
+                        if (USE_AGENT_POOLS) {
+                            report(String.format("пулы агентов: переиспользовано=%d, создано=%d",
+                                    AgentPool.getReusedCount(), AgentPool.getCreatedCount()));
+                        }
+                        if (loadGenerator != null) {
+                            report(String.format("генератор нагрузки: посетителей=%d, достигнутая частота прихода=%s/с.",
+                                    loadGenerator.getGeneratedCount(), formatTime(loadGenerator.getAchievedArrivalRate())));
+                        }
+                        if (getOrderIntakeTimesCount() > 0) {
+                            report(String.format("прием заказов: заказов=%d, время приема p50=%sмс. p90=%sмс. p99=%sмс. max=%sмс.",
+                                    getOrderIntakeTimesCount(), formatTime(getOrderIntakeTimePercentile(50) * 1000),
+                                    formatTime(getOrderIntakeTimePercentile(90) * 1000), formatTime(getOrderIntakeTimePercentile(99) * 1000),
+                                    formatTime(getOrderIntakeTimePercentile(100) * 1000)));
+                        }
+                        if (USE_TIME_ESTIMATE_CACHE) {
+                            report(String.format("кэш оценок времени: попаданий=%d, промахов=%d, версий снимка ресурсов=%d",
+                                    TimeEstimateCache.getHitsCount(), TimeEstimateCache.getMissesCount(), TimeEstimateCache.getVersion()));
+                        }
+                        if (USE_BINARY_MESSAGE_CODEC && MessageCodec.getEncodedCount() > 0) {
+                            report(String.format("кодек сообщений: сообщений=%d, в среднем %d байт на сообщение",
+                                    MessageCodec.getEncodedCount(), MessageCodec.getEncodedBytes() / MessageCodec.getEncodedCount()));
+                        }
+                        if (USE_LOCAL_MESSAGE_PASSING) {
+                            report(String.format("передача объектов по ссылке: передано=%d, не получено адресатами=%d",
+                                    MessageCodec.getReferencesCount(), MessageCodec.getPendingReferencesCount()));
+                        }
+                        if (USE_VIRTUAL_CLOCK) {
+                            report(String.format("виртуальные часы пропустили %sс.", formatTime(SimulationClock.getSkippedSeconds())));
+                        }
+                        report(String.format("процессорное время: %sс. за %sс. работы ресторана",
+                                formatTime(getProcessCpuTime() / 1e9), formatTime((System.nanoTime() - startTime) / 1e9)));
                         writeLogData();
                         step = 2;
                         doDelete();
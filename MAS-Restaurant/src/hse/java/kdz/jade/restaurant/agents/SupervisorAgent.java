@@ -1,19 +1,27 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.WarehouseRouter;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
+import hse.java.kdz.jade.restaurant.types.DishCard;
 import hse.java.kdz.jade.restaurant.types.DishData;
 import hse.java.kdz.jade.restaurant.types.MenuDish;
 import hse.java.kdz.jade.restaurant.types.VisitorOrderedDish;
 import jade.core.AID;
-import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
-import jade.core.behaviours.WakerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 import static java.util.Comparator.comparingDouble;
@@ -22,77 +30,188 @@ import static java.util.Comparator.comparingInt;
 /**
  * Класс агента супервизора.
  * Поведения агента:
- * 1) Принятие заказов от агентов посетителей
- * 2) Управления очередностью приготовления блюд (оркестрация агентов блюд)
+ * 1) Принятие заказов от агентов посетителей (заказы, поступившие в одно окно приема, проверяются по меню
+ *    и складу одной группой; несколько групп могут обрабатываться одновременно)
+ * 2) Учет статусов блюд, о которых сообщают агенты блюд
+ * 3) Управления очередностью приготовления блюд (оркестрация агентов блюд)
  */
 public class SupervisorAgent extends RestaurantAgent {
     /**
      * Общее количество сделанных заказов
      */
     private int ordersCount = 0;
+    /**
+     * Группа заказов, поступающих в текущее окно приема (см. ORDER_ADMISSION_WINDOW)
+     */
+    private AdmissionGroup admissionGroup = new AdmissionGroup();
+    /**
+     * Количество сформированных групп заказов
+     */
+    private int admissionGroupsCount = 0;
+    /**
+     * Группы заказов, ожидающие проверки агентом меню и складом
+     * Ключ - id запроса к агенту меню и складу (reply-with)
+     * Значение - группа заказов
+     */
+    private final HashMap<String, AdmissionGroup> pendingGroups = new HashMap<>();
+    /**
+     * Количество принятых блюд, агенты которых еще не встали в очередь на готовку
+     */
+    private int pendingAdmittedDishes = 0;
+    /**
+     * Продукты принятых блюд, которые еще не зарезервированы на складе
+     * (агент блюда резервирует их все сразу при начале готовки, см. DishAgent.ProductsReservationBehaviour)
+     * Ключ - 'id заказа:id блюда в заказе'
+     * Значение - необходимые продукты блюда
+     */
+    private final HashMap<String, LinkedHashMap<Integer, Double>> admittedDishesProducts = new HashMap<>();
+    /**
+     * Суммарное количество продуктов принятых блюд, которые еще не зарезервированы на складе
+     * Ключ - тип продукта
+     * Значение - количество
+     */
+    private final HashMap<Integer, Double> admittedProducts = new HashMap<>();
+    /**
+     * Момент, до которого запуск готовки ждет блюда последней принятой группы заказов (см. AgentTools.deadlineAfter)
+     */
+    private long admissionHoldDeadline = 0;
+    /**
+     * Поток создания агентов заказов и блюд.
+     * Создание агентов не задерживает прием следующих заказов и запуск готовки блюд.
+     * Поток обращается только к контейнеру агентов: о результате он сообщает агенту супервизора
+     * сообщением (см. AgentsCreationBehaviour), и состояние супервизора меняется только в его потоке
+     */
+    private final ExecutorService agentsCreationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SupervisorAgentsCreation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Принятые заказы, агенты которых создаются
+     * Ключ - id заказа
+     * Значение - заказ и его блюда
+     */
+    private final HashMap<Integer, OrderCreation> creatingOrders = new HashMap<>();
+    /**
+     * Очередь блюд, ожидающих готовки, в порядке их поступления
+     * Ключ - агент блюда
+     * Значение - блюдо в очереди
+     */
+    private final LinkedHashMap<AID, ReadyDish> readyDishes = new LinkedHashMap<>();
+    /**
+     * Агенты блюд, готовка которых была запущена и еще не завершена
+     */
+    private final HashSet<AID> cookingDishes = new HashSet<>();
+    /**
+     * Партии блюд, запущенных вместе (см. startBatchedDishes)
+     * Ключ - агент блюда партии
+     * Значение - агенты блюд партии, готовка которых еще не завершена (одно множество на всю партию)
+     */
+    private final HashMap<AID, HashSet<AID>> dishBatches = new HashMap<>();
+    /**
+     * Количество мест на кухне, занятых запущенными блюдами.
+     * Планировщик кухни готовит партию блюд одним поваром, поэтому партия занимает одно место
+     */
+    private int occupiedSlotsCount = 0;
+    /**
+     * Общее количество блюд, готовку которых запустил супервизор
+     */
+    private long startedDishesCount = 0;
 
     @Override
     protected void setup() {
         register("Supervisor");
         report("был создан");
+        addBehaviour(new OrderReceptionBehaviour());
         addBehaviour(new OrderCreationBehaviour());
+        addBehaviour(new StockCheckingBehaviour());
+        addBehaviour(new AgentsCreationBehaviour());
+        addBehaviour(new DishStateBehaviour());
         addBehaviour(new KitchenManagementBehaviour());
         addBehaviour(new DeleteBehaviour());
     }
 
+    /**
+     * Метод переопределяет базовое поведение агента при его удалении.
+     * Агент супервизора останавливает поток создания агентов
+     */
+    @Override
+    protected void takeDown() {
+        agentsCreationExecutor.shutdownNow();
+        super.takeDown();
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику приема заказа.
+     * Заказы, поступившие в течение окна приема, объединяются в группу, и для группы агенту меню
+     * отправляется один запрос на актуальное меню с собственным id, поэтому следующие заказы принимаются,
+     * не дожидаясь ответа по предыдущим
+     */
+    private class OrderReceptionBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Order-creation"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                int orderID = ordersCount++;
+                report("получил запрос на создание заказа (" + orderID + ")");
+                admissionGroup.orders.add(new OrderIntake(orderID, msg.getOntology(), msg.getSender(),
+                        getObjectFromMsg(msg), msg.createReply()));
+                if (ORDER_ADMISSION_WINDOW == 0) {
+                    sendAdmissionGroup();
+                } else if (admissionGroup.orders.size() == 1) {
+                    addBehaviour(new WheelWakerBehaviour(myAgent, ORDER_ADMISSION_WINDOW) {
+                        @Override
+                        protected void onWake() {
+                            sendAdmissionGroup();
+                        }
+                    });
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Метод закрывает текущую группу заказов и отправляет агенту меню запрос на актуальное меню для неё
+     */
+    private void sendAdmissionGroup() {
+        String requestID = "Orders-" + admissionGroupsCount++;
+        pendingGroups.put(requestID, admissionGroup);
+        admissionGroup = new AdmissionGroup();
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.setConversationId("Menu-actualization");
+        msg.setReplyWith(requestID);
+        msg.addReceiver(find("Menu")[0]);
+        send(msg);
+    }
+
     /**
      * Класс поведения агента.
      * Поведение описывает логику создания заказа.
-     * Создает агента заказа и агентов блюд для соответственного поступившего заказа
+     * По ответу агента меню из заказов группы исключаются отсутствующие в меню блюда.
+     * Если включено окно приема, то суммарная потребность оставшихся блюд группы в продуктах
+     * проверяется одним запросом к каждому шарду склада (см. StockCheckingBehaviour), иначе заказ сразу создается
      */
     private class OrderCreationBehaviour extends CyclicBehaviour {
-        private int step = 0;
-        private ArrayList<VisitorOrderedDish> visitorOrderedDishes;
-        private ArrayList<MenuDish> menuDishes;
-        private String msgOntology;
-        private ACLMessage visitorReply;
-        MessageTemplate mt;
-        ACLMessage msg;
-
         @Override
         public void action() {
-            switch (step) {
-                case 0 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Order-creation"));
-                    msg = receive(mt);
-                    if (msg != null) {
-                        report("получил запрос на создание заказа (" + ordersCount + ")");
-                        visitorReply = msg.createReply();
-                        msgOntology = msg.getOntology();
-                        visitorOrderedDishes = getObjectFromMsg(msg);
-                        step = 1;
-                    } else {
-                        block();
-                    }
-                }
-                case 1 -> {
-                    AID menuAgent = find("Menu")[0];
-                    msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Menu-actualization");
-                    msg.addReceiver(menuAgent);
-                    send(msg);
-                    step = 2;
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Menu-actualization"));
+            ACLMessage reply = receive(mt);
+            if (reply != null) {
+                AdmissionGroup group = pendingGroups.get(reply.getInReplyTo());
+                if (group == null) {
+                    return;
                 }
-                case 2 -> {
-                    mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Menu-actualization"));
-                    ACLMessage reply = receive(mt);
-                    if (reply != null) {
-                        menuDishes = getObjectFromMsg(reply);
-                        step = 3;
-                    } else {
-                        block();
-                    }
-                }
-                case 3 -> {
+                ArrayList<MenuDish> menuDishes = getObjectFromMsg(reply);
+                LinkedHashMap<Integer, Double> requiredProducts = new LinkedHashMap<>();
+                for (var order : group.orders) {
                     ArrayList<VisitorOrderedDish> visitorOrderedDishesAfterCheck = new ArrayList<>();
-                    for (var orderedDish : visitorOrderedDishes) {
+                    for (var orderedDish : order.visitorOrderedDishes()) {
                         boolean success = false;
                         for (var menuDish : menuDishes) {
                             if (orderedDish.getDish() == menuDish.getId()) {
@@ -101,31 +220,194 @@ public class SupervisorAgent extends RestaurantAgent {
                                 break;
                             }
                         }
-                        if (!success) {
+                        if (success) {
+                            for (var requiredProduct : calculateRequiredProducts(findDishCardByMenuId(orderedDish.getDish())).entrySet()) {
+                                requiredProducts.merge(requiredProduct.getKey(), requiredProduct.getValue(), Double::sum);
+                            }
+                        } else {
                             report(String.format("блюдо '%s' было исключено из заказа (%d)",
-                                    Objects.requireNonNull(findDishCardByMenuId(orderedDish.getDish())).getName(), ordersCount));
+                                    Objects.requireNonNull(findDishCardByMenuId(orderedDish.getDish())).getName(), order.orderID()));
                         }
                     }
-                    if (visitorOrderedDishesAfterCheck.size() == 0) {
-                        report(String.format("В заказе (%d) 0 блюд. Создание заказа отменено", ordersCount));
-                        visitorReply.setPerformative(ACLMessage.DISCONFIRM);
-                        send(visitorReply);
-                        step = 0;
-                        break;
+                    group.checkedDishes.put(order.orderID(), visitorOrderedDishesAfterCheck);
+                }
+                var partitions = WarehouseRouter.partition(requiredProducts);
+                if (ORDER_ADMISSION_WINDOW == 0 || partitions.isEmpty()) {
+                    pendingGroups.remove(reply.getInReplyTo());
+                    admitGroup(group);
+                    return;
+                }
+                for (var partition : partitions.entrySet()) {
+                    ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                    msg.addReceiver(findWarehouse(partition.getValue().keySet().iterator().next()));
+                    msg.setConversationId("Bulk-checking");
+                    msg.setReplyWith(reply.getInReplyTo());
+                    msg.setContent(WarehouseRouter.format(partition.getValue()));
+                    send(msg);
+                }
+                group.pendingWarehouseReplies = partitions.size();
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику получения от шардов склада остатков продуктов, необходимых группе заказов.
+     * Когда ответили все шарды, группа заказов принимается
+     */
+    private class StockCheckingBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Bulk-checking"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                AdmissionGroup group = pendingGroups.get(msg.getInReplyTo());
+                if (group == null) {
+                    return;
+                }
+                group.productsStock.putAll(WarehouseRouter.parse(msg.getOntology()));
+                group.pendingWarehouseReplies--;
+                if (group.pendingWarehouseReplies == 0) {
+                    pendingGroups.remove(msg.getInReplyTo());
+                    admitGroup(group);
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    /**
+     * Метод принимает проверенную группу заказов.
+     * Если известны остатки продуктов, то блюда распределяются между заказами в порядке их поступления:
+     * блюдо, для которого не хватает продуктов после блюд предыдущих заказов группы и ранее принятых блюд,
+     * продукты которых еще не зарезервированы, исключается из заказа.
+     * Посетителям сообщается итоговый состав заказа, агенты заказов и блюд создаются в потоке создания агентов,
+     * а запуск готовки ждет, пока блюда группы не встанут в очередь, чтобы порядок их готовки выбирался вместе
+     * @param group - группа заказов
+     */
+    private void admitGroup(AdmissionGroup group) {
+        int admittedDishes = 0;
+        // Продукты блюд, принятых ранее и еще не зарезервированных на складе, уже обещаны их заказам
+        for (var productStock : group.productsStock.entrySet()) {
+            productStock.setValue(productStock.getValue() - admittedProducts.getOrDefault(productStock.getKey(), 0.0));
+        }
+        for (var order : group.orders) {
+            ArrayList<VisitorOrderedDish> visitorOrderedDishesAfterCheck = group.checkedDishes.get(order.orderID());
+            if (!group.productsStock.isEmpty()) {
+                Iterator<VisitorOrderedDish> iterator = visitorOrderedDishesAfterCheck.iterator();
+                while (iterator.hasNext()) {
+                    DishCard dishCard = Objects.requireNonNull(findDishCardByMenuId(iterator.next().getDish()));
+                    LinkedHashMap<Integer, Double> requiredProducts = calculateRequiredProducts(dishCard);
+                    boolean success = true;
+                    for (var requiredProduct : requiredProducts.entrySet()) {
+                        if (group.productsStock.getOrDefault(requiredProduct.getKey(), 0.0) < requiredProduct.getValue()) {
+                            success = false;
+                            break;
+                        }
                     }
-                    create(String.format("OrderAgent[%d]", ordersCount), OrderAgent.class, msgOntology, ordersCount, visitorOrderedDishesAfterCheck);
-                    for (var orderedDish : visitorOrderedDishesAfterCheck) {
-                        create(String.format("DishAgent[%d, order:%d]", orderedDish.getId(), ordersCount),
-                                DishAgent.class, orderedDish.getId(), orderedDish.getDish(), ordersCount);
+                    if (success) {
+                        for (var requiredProduct : requiredProducts.entrySet()) {
+                            group.productsStock.merge(requiredProduct.getKey(), -requiredProduct.getValue(), Double::sum);
+                        }
+                    } else {
+                        iterator.remove();
+                        report(String.format("блюдо '%s' было исключено из заказа (%d): продуктов не хватает на все заказы группы",
+                                dishCard.getName(), order.orderID()));
                     }
-                    printOrderInformation(ordersCount, msgOntology, visitorOrderedDishesAfterCheck);
-                    visitorReply.setPerformative(ACLMessage.CONFIRM);
-                    setObjectToMsg(visitorReply, visitorOrderedDishesAfterCheck);
-                    send(visitorReply);
-                    ordersCount++;
-                    step = 0;
                 }
             }
+            ACLMessage visitorReply = order.visitorReply();
+            if (visitorOrderedDishesAfterCheck.size() == 0) {
+                report(String.format("В заказе (%d) 0 блюд. Создание заказа отменено", order.orderID()));
+                visitorReply.setPerformative(ACLMessage.DISCONFIRM);
+                send(visitorReply);
+                continue;
+            }
+            visitorReply.setPerformative(ACLMessage.CONFIRM);
+            setObjectToMsg(visitorReply, visitorOrderedDishesAfterCheck);
+            send(visitorReply);
+            for (var orderedDish : visitorOrderedDishesAfterCheck) {
+                LinkedHashMap<Integer, Double> requiredProducts =
+                        calculateRequiredProducts(Objects.requireNonNull(findDishCardByMenuId(orderedDish.getDish())));
+                admittedDishesProducts.put(order.orderID() + ":" + orderedDish.getId(), requiredProducts);
+                for (var requiredProduct : requiredProducts.entrySet()) {
+                    admittedProducts.merge(requiredProduct.getKey(), requiredProduct.getValue(), Double::sum);
+                }
+            }
+            admittedDishes += visitorOrderedDishesAfterCheck.size();
+            OrderCreation creation = new OrderCreation(order, visitorOrderedDishesAfterCheck);
+            creatingOrders.put(order.orderID(), creation);
+            AID supervisor = getAID();
+            agentsCreationExecutor.execute(() -> postMessage(createOrderAgents(creation, supervisor)));
+        }
+        if (ORDER_ADMISSION_WINDOW > 0 && admittedDishes > 0) {
+            pendingAdmittedDishes += admittedDishes;
+            admissionHoldDeadline = deadlineAfter(ORDER_ADMISSION_WINDOW / 1000.0);
+        }
+    }
+
+    /**
+     * Метод перестает учитывать продукты принятого блюда, когда они зарезервированы на складе
+     * или готовка блюда завершилась либо была прекращена
+     * @param dishKey - 'id заказа:id блюда в заказе'
+     */
+    private void releaseAdmittedProducts(String dishKey) {
+        LinkedHashMap<Integer, Double> requiredProducts = dishKey != null ? admittedDishesProducts.remove(dishKey) : null;
+        if (requiredProducts == null) {
+            return;
+        }
+        for (var requiredProduct : requiredProducts.entrySet()) {
+            admittedProducts.merge(requiredProduct.getKey(), -requiredProduct.getValue(), Double::sum);
+        }
+    }
+
+    /**
+     * Метод создает агентов заказа и его блюд (выполняется в потоке создания агентов)
+     * @param creation - принятый заказ
+     * @param supervisor - агент супервизора
+     * @return - сообщение супервизору о результате: INFORM, если все агенты созданы, иначе FAILURE
+     */
+    private static ACLMessage createOrderAgents(OrderCreation creation, AID supervisor) {
+        OrderIntake order = creation.order();
+        AID orderAgent = launch(String.format("OrderAgent[%d]", order.orderID()), OrderAgent.class,
+                order.visitorName(), order.orderID(), creation.dishes(), order.visitorAgent());
+        boolean success = orderAgent != null;
+        for (int i = 0; success && i < creation.dishes().size(); i++) {
+            VisitorOrderedDish orderedDish = creation.dishes().get(i);
+            success = launch(String.format("DishAgent[%d, order:%d]", orderedDish.getId(), order.orderID()),
+                    DishAgent.class, orderedDish.getId(), orderedDish.getDish(), order.orderID(), orderAgent) != null;
+        }
+        ACLMessage msg = new ACLMessage(success ? ACLMessage.INFORM : ACLMessage.FAILURE);
+        msg.setConversationId("Agents-creation");
+        msg.setContent(String.valueOf(order.orderID()));
+        msg.setSender(supervisor);
+        msg.addReceiver(supervisor);
+        return msg;
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику получения результатов создания агентов заказов из потока создания агентов:
+     * о созданном заказе выводится информация, а ошибка создания агентов останавливает симуляцию
+     */
+    private class AgentsCreationBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            ACLMessage msg = receive(MessageTemplate.MatchConversationId("Agents-creation"));
+            if (msg != null) {
+                OrderCreation creation = creatingOrders.remove(Integer.parseInt(msg.getContent()));
+                if (msg.getPerformative() == ACLMessage.FAILURE) {
+                    stopSimulation(myAgent);
+                } else if (creation != null) {
+                    printOrderInformation(creation.order().orderID(), creation.order().visitorName(), creation.dishes());
+                }
+            } else {
+                block();
+            }
         }
     }
 
@@ -139,7 +421,7 @@ public class SupervisorAgent extends RestaurantAgent {
     private void printOrderInformation(int orderID, String visitorName, ArrayList<VisitorOrderedDish> visitorOrderedDishes) {
         ArrayList<String> rows = new ArrayList<>();
         rows.add("║ Номер заказа: " + orderID);
-        rows.add("║ Дата создания: " + getFormattedDate(new Date()));
+        rows.add("║ Дата создания: " + getFormattedDate(SimulationClock.now()));
         rows.add("║ Посетитель: " + visitorName);
         rows.add("║ Стоимость: " + calculatePriceByVisitorOrderedDishes(visitorOrderedDishes));
         rows.add("║ Блюда:");
@@ -163,125 +445,259 @@ public class SupervisorAgent extends RestaurantAgent {
         }
     }
 
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику учета статусов блюд, о которых сообщают агенты блюд.
+     * Ожидающие блюда ставятся в очередь на готовку, а завершение или отмена готовки освобождает повара
+     */
+    private class DishStateBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                    MessageTemplate.MatchConversationId("Dish-state"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                AID dishAgent = msg.getSender();
+                switch (msg.getOntology()) {
+                    case "Waiting" -> {
+                        if (pendingAdmittedDishes > 0) {
+                            pendingAdmittedDishes--;
+                        }
+                        if (!cookingDishes.contains(dishAgent)) {
+                            readyDishes.put(dishAgent, new ReadyDish(getObjectFromMsg(msg), startedDishesCount));
+                        }
+                    }
+                    case "Cooking" -> {
+                        readyDishes.remove(dishAgent);
+                        if (cookingDishes.add(dishAgent)) {
+                            occupiedSlotsCount++;
+                        }
+                    }
+                    case "Reserved" -> releaseAdmittedProducts(msg.getProtocol());
+                    default -> {
+                        readyDishes.remove(dishAgent);
+                        finishCooking(dishAgent);
+                        releaseAdmittedProducts(msg.getProtocol());
+                    }
+                }
+                notifyStateChanged();
+            } else {
+                block();
+            }
+        }
+    }
+
     /**
      * Класс поведения агента.
      * Поведение описывает логику управления очередностью приготовления блюд.
      * Отвечает за то, чтобы повара и оборудование как можно меньше находились в простое,
      * но чтобы при этом блюда из ранних заказов также своевременного готовились.
-     * Это достигается за счёт получения всей актуальной информации о времени от агента меню и
-     * с помощью системы приоритетов: каждое не готовящееся блюдо имеет свой приоритет, который
-     * повышается каждый раз, когда супервизор выбрал для готовки не 'это' блюдо.
-     * Этот приоритет участвует во временных расчетах агента меню.
+     * Как только в очереди есть блюда и свободные повара, супервизор получает от агента меню
+     * время простоя кухни для каждого ожидающего блюда и запускает готовку блюд с наименьшим временем.
+     * Время делится на приоритет блюда, который растет на количество блюд, запущенных
+     * с момента постановки блюда в очередь (см. ReadyDish)
      */
-    private class KitchenManagementBehaviour extends Behaviour {
+    private class KitchenManagementBehaviour extends CyclicBehaviour {
         private int step = 0;
-        private int cookingDishesCount = 0;
-        private int repliesCount = 0;
-        private AID[] dishAgents;
+        /**
+         * Момент окончания ожидания группы заказов, к которому запланировано пробуждение поведения
+         */
+        private long holdWakeDeadline = 0;
         private MessageTemplate mt;
         ACLMessage msg;
-        private ArrayList<DishData> waitingDishesDataArray;
-
 
         @Override
         public void action() {
             switch (step) {
                 case 0 -> {
-                    dishAgents = find("Dish");
-                    if (dishAgents.length == 0) {
-                        step = 0;
+                    if (readyDishes.isEmpty() || find("Cook").length <= occupiedSlotsCount) {
+                        waitForStateChange(this);
+                        break;
+                    }
+                    if (pendingAdmittedDishes > 0 && millisUntil(admissionHoldDeadline) > 0) {
+                        // Агенты блюд последней принятой группы заказов еще создаются:
+                        // порядок готовки выбирается агентом меню для всей группы сразу
+                        if (holdWakeDeadline != admissionHoldDeadline) {
+                            holdWakeDeadline = admissionHoldDeadline;
+                            addBehaviour(new WheelWakerBehaviour(myAgent, millisUntil(admissionHoldDeadline)) {
+                                @Override
+                                protected void onWake() {
+                                    notifyStateChanged();
+                                }
+                            });
+                        }
+                        waitForStateChange(this);
                         break;
                     }
-                    waitingDishesDataArray = new ArrayList<>();
-                    cookingDishesCount = 0;
-                    repliesCount = 0;
+                    ArrayList<DishData> waitingDishesDataArray = new ArrayList<>(readyDishes.size());
+                    for (var readyDish : readyDishes.entrySet()) {
+                        waitingDishesDataArray.add(new DishData(readyDish.getValue().dishCard(), readyDish.getKey(),
+                                readyDish.getValue().getPriority(startedDishesCount)));
+                    }
                     msg = new ACLMessage(ACLMessage.REQUEST);
-                    msg.setConversationId("Management");
+                    msg.setConversationId("Time-calculation");
+                    msg.setOntology("DishData");
                     msg.setReplyWith(String.valueOf(System.currentTimeMillis()));
-                    for (var dishAgent : dishAgents) {
-                        msg.addReceiver(dishAgent);
-                    }
+                    msg.addReceiver(find("Menu")[0]);
+                    setObjectToMsg(msg, waitingDishesDataArray);
                     send(msg);
                     mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                            MessageTemplate.MatchConversationId("Management"));
+                            MessageTemplate.MatchConversationId("Time-calculation"));
                     mt = MessageTemplate.and(mt, MessageTemplate.MatchInReplyTo(msg.getReplyWith()));
                     step = 1;
                 }
                 case 1 -> {
                     msg = receive(mt);
                     if (msg != null) {
-                        repliesCount++;
-                        if (Objects.equals(msg.getOntology(), "DishCard")) {
-                            waitingDishesDataArray.add(
-                                    new DishData(getObjectFromMsg(msg), msg.getSender(), Integer.parseInt(msg.getProtocol())));
-                        } else {
-                            if (Objects.equals(msg.getContent(), "Cooking")) {
-                                cookingDishesCount++;
-                            }
-                        }
-                        if (repliesCount >= dishAgents.length) {
-                            if (waitingDishesDataArray.size() == 0) {
-                                step = 3;
-                                break;
-                            }
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Time-calculation");
-                            msg.setOntology("DishData");
-                            msg.setReplyWith(String.valueOf(System.currentTimeMillis()));
-                            setObjectToMsg(msg, waitingDishesDataArray);
-                            msg.addReceiver(find("Menu")[0]);
-                            send(msg);
-                            mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                                    MessageTemplate.MatchConversationId("Time-calculation"));
-                            mt = MessageTemplate.and(mt, MessageTemplate.MatchInReplyTo(msg.getReplyWith()));
-                            step = 2;
-                        }
-                    } else {
-                        block();
-                    }
-                }
-                case 2 -> {
-                    msg = receive(mt);
-                    if (msg != null) {
-                        waitingDishesDataArray = getObjectFromMsg(msg);
+                        ArrayList<DishData> waitingDishesDataArray = getObjectFromMsg(msg);
                         waitingDishesDataArray.sort(comparingDouble(DishData::getWaitingTime));
-                        int activationsCount = Math.min(find("Cook").length - cookingDishesCount, waitingDishesDataArray.size());
-                        if (activationsCount != 0) {
-                            int i = 0;
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Start-cooking");
-                            for (; i < activationsCount; i++) {
-                                msg.addReceiver(waitingDishesDataArray.get(i).getDishAgent());
+                        // Пока агент меню считал время, часть блюд могла быть отменена или поваров стало меньше
+                        int activationsCount = find("Cook").length - occupiedSlotsCount;
+                        msg = new ACLMessage(ACLMessage.REQUEST);
+                        msg.setConversationId("Start-cooking");
+                        int startedCount = 0;
+                        int batchedCount = 0;
+                        for (var dishData : waitingDishesDataArray) {
+                            if (startedCount >= activationsCount) {
+                                break;
                             }
-                            send(msg);
-                            msg = new ACLMessage(ACLMessage.REQUEST);
-                            msg.setConversationId("Increase-priority");
-                            for (; i < waitingDishesDataArray.size(); i++) {
-                                msg.addReceiver(waitingDishesDataArray.get(i).getDishAgent());
+                            if (readyDishes.remove(dishData.getDishAgent()) != null) {
+                                cookingDishes.add(dishData.getDishAgent());
+                                occupiedSlotsCount++;
+                                msg.addReceiver(dishData.getDishAgent());
+                                startedCount++;
+                                batchedCount += startBatchedDishes(dishData.getDishCard(), dishData.getDishAgent(), msg);
                             }
-                            msg.setContent(String.valueOf(activationsCount));
+                        }
+                        if (startedCount > 0) {
+                            startedDishesCount += startedCount + batchedCount;
                             send(msg);
                         }
-                        step = 3;
+                        step = 0;
                     } else {
                         block();
                     }
                 }
-                case 3 -> {
-                    addBehaviour(new WakerBehaviour(myAgent, KITCHEN_ACTUALIZED_STATUS_THRESHOLD) {
-                        @Override
-                        protected void onWake() {
-                            addBehaviour(new KitchenManagementBehaviour());
-                        }
-                    });
-                    step = 4;
-                }
             }
         }
+    }
 
-        @Override
-        public boolean done() {
-            return step == 4;
+    /**
+     * Метод добавляет к запуску блюда ожидающие блюда с той же карточкой, если все операции карточки
+     * могут быть объединены планировщиком кухни (см. OPERATION_BATCH_CAPACITIES).
+     * Блюдо и добавленные к нему блюда образуют партию, которая занимает одно место на кухне,
+     * пока не завершится готовка всех её блюд
+     * @param dishCard - карточка запускаемого блюда
+     * @param dishAgent - агент запускаемого блюда
+     * @param msg - запрос на начало готовки
+     * @return - количество добавленных блюд
+     */
+    private int startBatchedDishes(DishCard dishCard, AID dishAgent, ACLMessage msg) {
+        int batchCapacity = USE_KITCHEN_SCHEDULER && !dishCard.getOperations().isEmpty() ? Integer.MAX_VALUE : 1;
+        for (var operation : dishCard.getOperations()) {
+            batchCapacity = Math.min(batchCapacity, OPERATION_BATCH_CAPACITIES.getOrDefault(operation.getEquipmentType(), 1));
+        }
+        HashSet<AID> batch = new HashSet<>();
+        Iterator<Map.Entry<AID, ReadyDish>> iterator = readyDishes.entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < batchCapacity - 1) {
+            Map.Entry<AID, ReadyDish> readyDish = iterator.next();
+            if (readyDish.getValue().dishCard().getId() == dishCard.getId()) {
+                iterator.remove();
+                cookingDishes.add(readyDish.getKey());
+                msg.addReceiver(readyDish.getKey());
+                batch.add(readyDish.getKey());
+            }
+        }
+        int batchedCount = batch.size();
+        if (batchedCount > 0) {
+            batch.add(dishAgent);
+            for (var batchedDish : batch) {
+                dishBatches.put(batchedDish, batch);
+            }
+        }
+        return batchedCount;
+    }
+
+    /**
+     * Метод освобождает место на кухне, занятое блюдом, готовка которого завершилась или была прекращена.
+     * Место партии блюд освобождается вместе с последним её блюдом
+     * @param dishAgent - агент блюда
+     */
+    private void finishCooking(AID dishAgent) {
+        if (!cookingDishes.remove(dishAgent)) {
+            return;
+        }
+        HashSet<AID> batch = dishBatches.remove(dishAgent);
+        if (batch != null) {
+            batch.remove(dishAgent);
+            if (!batch.isEmpty()) {
+                return;
+            }
+        }
+        occupiedSlotsCount--;
+    }
+
+    /**
+     * Класс группы заказов, поступивших в одно окно приема
+     */
+    private static class AdmissionGroup {
+        /**
+         * Заказы группы в порядке поступления
+         */
+        private final ArrayList<OrderIntake> orders = new ArrayList<>();
+        /**
+         * Блюда заказов, оставшиеся после проверки по меню
+         * Ключ - id заказа
+         * Значение - блюда заказа
+         */
+        private final HashMap<Integer, ArrayList<VisitorOrderedDish>> checkedDishes = new HashMap<>();
+        /**
+         * Остатки продуктов, необходимых группе, по ответам шардов склада
+         * Ключ - тип продукта
+         * Значение - доступное количество
+         */
+        private final HashMap<Integer, Double> productsStock = new HashMap<>();
+        /**
+         * Количество шардов склада, ответ которых еще не получен
+         */
+        private int pendingWarehouseReplies = 0;
+    }
+
+    /**
+     * Заказ, ожидающий проверки блюд по актуальному меню
+     * @param orderID - id заказа в системе
+     * @param visitorName - имя посетителя
+     * @param visitorAgent - агент посетителя
+     * @param visitorOrderedDishes - блюда, заказанные посетителем
+     * @param visitorReply - ответ посетителю
+     */
+    private record OrderIntake(int orderID, String visitorName, AID visitorAgent,
+                               ArrayList<VisitorOrderedDish> visitorOrderedDishes, ACLMessage visitorReply) {
+    }
+
+    /**
+     * Принятый заказ, агенты которого создаются
+     * @param order - заказ
+     * @param dishes - блюда заказа, оставшиеся после проверки
+     */
+    private record OrderCreation(OrderIntake order, ArrayList<VisitorOrderedDish> dishes) {
+    }
+
+    /**
+     * Блюдо в очереди на готовку
+     * @param dishCard - карточка блюда
+     * @param enqueuedAt - количество блюд, запущенных супервизором до постановки блюда в очередь
+     */
+    private record ReadyDish(DishCard dishCard, long enqueuedAt) {
+        /**
+         * Метод для получения приоритета блюда.
+         * Исключает ситуации, когда блюда из ранних заказов не готовятся длительное время:
+         * приоритет растет на единицу за каждое блюдо, запущенное супервизором, пока это блюдо ожидало
+         * @param startedCount - общее количество блюд, запущенных супервизором
+         * @return - приоритет (не меньше 1)
+         */
+        int getPriority(long startedCount) {
+            return (int) Math.min(Integer.MAX_VALUE, 1 + startedCount - enqueuedAt);
         }
     }
 }
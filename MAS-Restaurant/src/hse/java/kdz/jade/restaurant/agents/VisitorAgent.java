@@ -1,17 +1,15 @@
 package hse.java.kdz.jade.restaurant.agents;
 
+import hse.java.kdz.jade.restaurant.tools.SimulationClock;
+import hse.java.kdz.jade.restaurant.tools.WheelWakerBehaviour;
 import hse.java.kdz.jade.restaurant.types.VisitorOrder;
 import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.OneShotBehaviour;
-import jade.core.behaviours.WakerBehaviour;
-import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
-import java.util.Date;
-
 import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
 
 /**
@@ -29,6 +27,10 @@ public class VisitorAgent extends RestaurantAgent {
      * Агент супервизора
      */
     private AID supervisorAgent;
+    /**
+     * Агент симуляции
+     */
+    private AID simulationAgent;
     /**
      * Агент заказа
      */
@@ -45,9 +47,9 @@ public class VisitorAgent extends RestaurantAgent {
     @Override
     protected void setup() {
         visitorOrder = (VisitorOrder) getArguments()[0];
-        supervisorAgent = find("Supervisor")[0];
-        visitorOrder.setStarted(new Date());
-        register("Visitor", new Property("visitorName", visitorOrder.getVisitorName()));
+        supervisorAgent = (AID) getArguments()[1];
+        simulationAgent = (AID) getArguments()[2];
+        visitorOrder.setStarted(SimulationClock.now());
         report("был создан");
         addBehaviour(new InitializationBehaviour());
         addBehaviour(new OrderCompletionCheckingBehaviour());
@@ -62,6 +64,10 @@ public class VisitorAgent extends RestaurantAgent {
      */
     private class InitializationBehaviour extends Behaviour {
         private int step = 0;
+        /**
+         * Момент отправки заказа агенту супервизора (по часам симуляции SimulationClock)
+         */
+        private long requestedAt;
 
         @Override
         public void action() {
@@ -70,9 +76,10 @@ public class VisitorAgent extends RestaurantAgent {
                     ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
                     msg.setConversationId("Order-creation");
                     msg.setOntology(visitorOrder.getVisitorName());
-                    setObjectToMsg(msg, visitorOrder.getDishes());
                     msg.addReceiver(supervisorAgent);
+                    setObjectToMsg(msg, visitorOrder.getDishes());
                     send(msg);
+                    requestedAt = SimulationClock.nanoTime();
                     step = 1;
                 }
                 case 1 -> {
@@ -80,13 +87,13 @@ public class VisitorAgent extends RestaurantAgent {
                     ACLMessage reply = receive(mt);
                     if (reply != null) {
                         if (reply.getPerformative() == ACLMessage.CONFIRM) {
-                            visitorOrder.setStarted(new Date());
+                            visitorOrder.setStarted(SimulationClock.now());
                             visitorOrder.setTotalCost(calculatePriceByVisitorOrderedDishes(visitorOrder.getDishes()));
                             visitorOrder.setDishes(getObjectFromMsg(reply));
                             step = 2;
                         } else {
                             formattedReport("red", String.format("Посетитель '%s' ушёл, не сделав заказ", visitorOrder.getVisitorName()));
-                            visitorOrder.setEnded(new Date());
+                            visitorOrder.setEnded(SimulationClock.now());
                             step = 3;
                             addBehaviour(new SimulationInformingBehaviour());
                         }
@@ -95,11 +102,14 @@ public class VisitorAgent extends RestaurantAgent {
                     }
                 }
                 case 2 -> {
-                    AID[] orders = find("Order", new Property("visitorName", visitorOrder.getVisitorName()));
-                    if (orders.length > 0) {
-                        orderAgent = orders[0];
+                    ACLMessage msg = receive(announcementTemplate());
+                    if (msg != null) {
+                        orderAgent = msg.getSender();
+                        addOrderIntakeTime((SimulationClock.nanoTime() - requestedAt) / 1e9);
                         initialized = true;
                         step = 3;
+                    } else {
+                        block();
                     }
                 }
             }
@@ -124,7 +134,7 @@ public class VisitorAgent extends RestaurantAgent {
                     MessageTemplate.MatchConversationId("Order-completion"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                visitorOrder.setEnded(new Date());
+                visitorOrder.setEnded(SimulationClock.now());
                 formattedReport("green", String.format("Посетитель '%s' получил весь свой заказ!", visitorOrder.getVisitorName()),
                         "Время получения заказа: " + getFormattedDate(visitorOrder.getEnded()));
                 addBehaviour(new SimulationInformingBehaviour());
@@ -155,17 +165,17 @@ public class VisitorAgent extends RestaurantAgent {
         public void action() {
             if (willCancelOrder) {
                 int delay = rand.nextInt((MAX_ORDER_CANCELLATION_DELAY - MIN_ORDER_CANCELLATION_DELAY) + 1) + MIN_ORDER_CANCELLATION_DELAY;
-                addBehaviour(new WakerBehaviour(myAgent, delay) {
+                addBehaviour(new WheelWakerBehaviour(myAgent, delay) {
                     @Override
                     protected void onWake() {
                         ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
                         msg.setConversationId("Order-cancellation");
                         msg.addReceiver(orderAgent);
                         send(msg);
-                        visitorOrder.setEnded(new Date());
+                        visitorOrder.setEnded(SimulationClock.now());
                         visitorOrder.setTotalCost(0);
                         formattedReport("red", String.format("Посетитель '%s' отменил свой заказ!", visitorOrder.getVisitorName()),
-                                "Время отмены: " + getFormattedDate(new Date()));
+                                "Время отмены: " + getFormattedDate(SimulationClock.now()));
                         addBehaviour(new SimulationInformingBehaviour());
                     }
                 });
@@ -203,7 +213,7 @@ public class VisitorAgent extends RestaurantAgent {
                         formattedReport("yellow", String.format("Посетитель '%s' узнал, что до приготовления заказа осталось %sс.",
                                 visitorOrder.getVisitorName(), formatTime(Double.parseDouble(reply.getContent()))));
                         int delay = rand.nextInt((MAX_ORDER_TIME_RECOGNITION_DELAY - MIN_ORDER_TIME_RECOGNITION_DELAY) + 1) + MIN_ORDER_TIME_RECOGNITION_DELAY;
-                        addBehaviour(new WakerBehaviour(myAgent, delay) {
+                        addBehaviour(new WheelWakerBehaviour(myAgent, delay) {
                             @Override
                             protected void onWake() {
                                 addBehaviour(new OrderTimeRecognitionBehaviour());
@@ -228,7 +238,7 @@ public class VisitorAgent extends RestaurantAgent {
      * Поведение описывает логику ухода посетителя по истечению заданного времени,
      * если заказ не был к этому моменту готов
      */
-    private class WaitingBehaviour extends WakerBehaviour {
+    private class WaitingBehaviour extends WheelWakerBehaviour {
         public WaitingBehaviour(Agent a, long wakeupDate) {
             super(a, wakeupDate);
         }
@@ -249,8 +259,8 @@ public class VisitorAgent extends RestaurantAgent {
             addVisitorOrderReport(visitorOrder);
             ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
             msg.setConversationId("Visitor-end");
+            msg.addReceiver(simulationAgent);
             setObjectToMsg(msg, visitorOrder);
-            msg.addReceiver(find("Simulation")[0]);
             send(msg);
             doDelete();
         }
@@ -1,57 +1,96 @@
 package hse.java.kdz.jade.restaurant.agents;
 
 import hse.java.kdz.jade.restaurant.tools.DataParser;
-import hse.java.kdz.jade.restaurant.types.OperationProduct;
+import hse.java.kdz.jade.restaurant.tools.ProductInventory;
+import hse.java.kdz.jade.restaurant.tools.WarehouseRouter;
 import hse.java.kdz.jade.restaurant.types.Product;
+import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 /**
- * Класс агента блюда.
+ * Класс агента склада.
  * Поведения агента:
- * 1) Резервация продукта со склада и создание соответственного агента продукта
- * 2) Возврат продукта обратно на склад, посланного агентом продукта
+ * 1) Резервация всех продуктов заказанного блюда со склада (одним запросом на блюдо) и запись резервации в журнал резерваций
+ * 2) Проверка наличия всех продуктов блюда (одним запросом на блюдо)
+ * 3) Возврат на склад продуктов, зарезервированных для заказанного блюда
+ * 4) Окончательное списание продуктов, зарезервированных для заказанного блюда
+ * При каждом изменении остатков агент уведомляет агента меню о новых остатках изменившихся типов продуктов
+ * Склад может быть разделен на несколько агентов (шардов): каждый агент хранит только продукты
+ * своих типов (см. WarehouseRouter) и регистрируется со свойством 'shard'
  */
 public class WarehouseAgent extends RestaurantAgent {
-    private ArrayList<Product> products;
+    /**
+     * Продукты склада, проиндексированные по типам
+     */
+    private ProductInventory inventory;
+    /**
+     * Номер шарда склада
+     */
+    private int shard;
+    /**
+     * Журнал резерваций
+     * Ключ - id заказанного блюда
+     * Значение - зарезервированные продукты (ключ - id продукта, значение - количество)
+     */
+    private final Map<Integer, Map<Integer, Double>> reservations = new HashMap<>();
 
     @Override
     protected void setup() {
-        products = DataParser.Data.products;
-        register("Warehouse");
-        report("был создан");
-        addBehaviour(new ReservationBehaviour());
-        addBehaviour(new CancelReservationBehaviour());
+        shard = getArguments() != null && getArguments().length > 0 ? (int) getArguments()[0] : 0;
+        ArrayList<Product> products = new ArrayList<>();
+        for (var product : DataParser.Data.products) {
+            if (WarehouseRouter.shardOf(product.getType()) == shard) {
+                products.add(product);
+            }
+        }
+        inventory = new ProductInventory(products);
+        register("Warehouse", new Property("shard", shard));
+        report(String.format("был создан (шард %d, продуктов: %d)", shard, products.size()));
+        addBehaviour(new BulkReservationBehaviour());
+        addBehaviour(new BulkCheckingBehaviour());
+        addBehaviour(new ReservationReleaseBehaviour());
+        addBehaviour(new ReservationCommitBehaviour());
         addBehaviour(new DeleteBehaviour());
     }
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику резервации продуктов со склада
+     * Поведение описывает логику резервации со склада всех продуктов заказанного блюда одним запросом.
+     * Содержимое запроса - необходимые продукты в формате 'тип продукта=суммарное количество' через запятую,
+     * онтология - id заказанного блюда. Каждый тип продукта резервируется независимо от остальных,
+     * ответ сообщает, удалось ли зарезервировать все продукты
      */
-    private class ReservationBehaviour extends CyclicBehaviour {
+    private class BulkReservationBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.REQUEST);
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Bulk-reserving"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                OperationProduct product = getObjectFromMsg(msg);
-                boolean success = false;
-                if (msg.getConversationId().equals("Reserving")) {
-                    success = reserveProduct(product, Integer.parseInt(msg.getOntology()), false);
-                } else if (msg.getConversationId().equals("Checking")) {
-                    success = reserveProduct(product, -1, true);
+                int orderedDishID = Integer.parseInt(msg.getOntology());
+                boolean success = true;
+                ArrayList<Integer> reservedTypes = new ArrayList<>();
+                for (var requiredProduct : WarehouseRouter.parse(msg.getContent()).entrySet()) {
+                    if (reserveProduct(requiredProduct.getKey(), requiredProduct.getValue(), orderedDishID)) {
+                        reservedTypes.add(requiredProduct.getKey());
+                    } else {
+                        success = false;
+                    }
                 }
+                notifyStockChange(reservedTypes);
                 ACLMessage reply = msg.createReply();
                 reply.setPerformative(ACLMessage.INFORM);
-                if (success) {
-                    reply.setContent("success");
-                } else {
-                    reply.setContent("failure");
-                }
+                reply.setContent(success ? "success" : "failure");
                 myAgent.send(reply);
             } else {
                 block();
@@ -61,21 +100,31 @@ public class WarehouseAgent extends RestaurantAgent {
 
     /**
      * Класс поведения агента.
-     * Поведение описывает логику возврата продуктов на склад
+     * Поведение описывает логику проверки наличия на складе всех продуктов блюда одним запросом.
+     * Содержимое запроса - необходимые продукты в формате 'тип продукта=суммарное количество' через запятую.
+     * Ответ содержит результат проверки для блюда целиком и остатки проверенных типов продуктов
      */
-    private class CancelReservationBehaviour extends CyclicBehaviour {
+    private class BulkCheckingBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.CANCEL);
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+                    MessageTemplate.MatchConversationId("Bulk-checking"));
             ACLMessage msg = receive(mt);
             if (msg != null) {
-                for (var product : products) {
-                    if (Integer.parseInt(msg.getConversationId()) == product.getId()) {
-                        product.addQuantity(Double.parseDouble(msg.getContent()));
-                        report(String.format("был возвращен продукт с id=%d в количестве=%.2f", product.getId(), Double.parseDouble(msg.getContent())));
-                        break;
+                boolean success = true;
+                LinkedHashMap<Integer, Double> productsStock = new LinkedHashMap<>();
+                for (var requiredProduct : WarehouseRouter.parse(msg.getContent()).entrySet()) {
+                    double availableQuantity = getAvailableQuantity(requiredProduct.getKey());
+                    if (availableQuantity < requiredProduct.getValue()) {
+                        success = false;
                     }
+                    productsStock.put(requiredProduct.getKey(), availableQuantity);
                 }
+                ACLMessage reply = msg.createReply();
+                reply.setPerformative(ACLMessage.INFORM);
+                reply.setOntology(WarehouseRouter.format(productsStock));
+                reply.setContent(success ? "success" : "failure");
+                send(reply);
             } else {
                 block();
             }
@@ -83,47 +132,103 @@ public class WarehouseAgent extends RestaurantAgent {
     }
 
     /**
-     * Метод циклично списывает со склада необходимое количество различных продуктов заданного типа,
-     * создает соответственных агентов продуктов, до тех пор пока не будет списан заданный объем
-     * переданного типа продукта. В случае если флаг checking имеет значение true,
-     * метод просто наличие переданного типа продукта в заданном объеме на складе
-     * @param operationProduct - продукт операции
-     * @param orderedDishID - id заказанного блюда
-     * @param checking - выполнить ли только проверку наличия типа продукта в заданном объеме
-     * @return - возвращает результат резервации/проверки
+     * Класс поведения агента.
+     * Поведение описывает логику возврата на склад продуктов, зарезервированных для заказанного блюда
      */
-    private boolean reserveProduct(OperationProduct operationProduct, int orderedDishID, boolean checking) {
-        double totalQuantity = 0;
-        ArrayList<Product> equalsProducts = new ArrayList<>();
-        for (var product : products) {
-            if (product.getType() == operationProduct.getType() && product.getQuantity() > 0) {
-                equalsProducts.add(product);
-                totalQuantity += product.getQuantity();
+    private class ReservationReleaseBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.CANCEL),
+                    MessageTemplate.MatchConversationId("Reservation-release"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                int orderedDishID = Integer.parseInt(msg.getContent());
+                Map<Integer, Double> reserved = reservations.remove(orderedDishID);
+                if (reserved == null) {
+                    return;
+                }
+                LinkedHashSet<Integer> productTypes = new LinkedHashSet<>();
+                for (var entry : reserved.entrySet()) {
+                    Product product = inventory.release(entry.getKey(), entry.getValue());
+                    if (product != null) {
+                        productTypes.add(product.getType());
+                        report(String.format("был возвращен продукт с id=%d в количестве=%.2f", product.getId(), entry.getValue()));
+                    }
+                }
+                notifyStockChange(productTypes);
+            } else {
+                block();
             }
         }
-        if (totalQuantity < operationProduct.getQuantity()) {
-            return false;
+    }
+
+    /**
+     * Класс поведения агента.
+     * Поведение описывает логику окончательного списания продуктов, зарезервированных для заказанного блюда
+     */
+    private class ReservationCommitBehaviour extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
+                    MessageTemplate.MatchConversationId("Reservation-commit"));
+            ACLMessage msg = receive(mt);
+            if (msg != null) {
+                reservations.remove(Integer.parseInt(msg.getContent()));
+            } else {
+                block();
+            }
         }
-        if (checking) {
-            return true;
+    }
+
+    /**
+     * Метод уведомляет агента меню об изменении остатков продуктов на складе.
+     * Содержимое уведомления - остатки в формате 'тип продукта=количество' через запятую
+     * @param productTypes - типы продуктов, остатки которых изменились
+     */
+    private void notifyStockChange(Collection<Integer> productTypes) {
+        AID[] menuAgents = find("Menu");
+        if (productTypes.isEmpty() || menuAgents.length == 0) {
+            return;
         }
-        totalQuantity = 0;
-        boolean stop = false;
-        double lastQuantity;
-        for (var product : equalsProducts) {
-            lastQuantity = product.getQuantity();
-            product.setQuantity(0);
-            totalQuantity += lastQuantity;
-            if (totalQuantity > operationProduct.getQuantity()) {
-                product.setQuantity(totalQuantity - operationProduct.getQuantity());
-                stop = true;
-            }
-            lastQuantity -= product.getQuantity();
-            create(String.format("ProductAgent[%d](%s, %.2f%s)", orderedDishID, product.getName(), lastQuantity, product.getUnit()),
-                    ProductAgent.class, orderedDishID, product.getId(), lastQuantity);
-            if (stop) {
-                break;
-            }
+        LinkedHashMap<Integer, Double> productsStock = new LinkedHashMap<>();
+        for (var productType : productTypes) {
+            productsStock.put(productType, getAvailableQuantity(productType));
+        }
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId("Stock-change");
+        msg.setContent(WarehouseRouter.format(productsStock));
+        msg.addReceiver(menuAgents[0]);
+        send(msg);
+    }
+
+    /**
+     * Метод для подсчета доступного на складе количества продукта заданного типа
+     * @param productType - тип продукта
+     * @return - суммарное количество всех продуктов этого типа
+     */
+    private double getAvailableQuantity(int productType) {
+        return inventory.getAvailableQuantity(productType);
+    }
+
+    /**
+     * Метод циклично списывает со склада необходимое количество различных продуктов заданного типа,
+     * записывает их в журнал резерваций заказанного блюда, до тех пор пока не будет списан заданный объем
+     * переданного типа продукта
+     * @param productType - тип продукта
+     * @param quantity - необходимое количество
+     * @param orderedDishID - id заказанного блюда
+     * @return - возвращает результат резервации
+     */
+    private boolean reserveProduct(int productType, double quantity, int orderedDishID) {
+        LinkedHashMap<Product, Double> reserved = inventory.reserve(productType, quantity);
+        if (reserved == null) {
+            return false;
+        }
+        for (var entry : reserved.entrySet()) {
+            Product product = entry.getKey();
+            reservations.computeIfAbsent(orderedDishID, k -> new HashMap<>()).merge(product.getId(), entry.getValue(), Double::sum);
+            report(String.format("зарезервирован продукт '%s' (%.2f%s) для блюда (%d)",
+                    product.getName(), entry.getValue(), product.getUnit(), orderedDishID));
         }
         return true;
     }
@@ -0,0 +1,209 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс локального (в рамках контейнера) кэша сервиса желтых страниц JADE.
+ * Агенты этого контейнера обновляют кэш синхронно при своей регистрации и её отмене,
+ * изменения прочих агентов приходят в кэш через подписку на уведомления DF.
+ * Поиск агентов сначала выполняется в кэше и только при промахе обращается к самому DF
+ */
+public class AgentDirectory {
+    /**
+     * Зарегистрированные сервисы
+     * Ключ - имя сервиса
+     * Значение - агенты, предоставляющие сервис, и свойства их сервиса
+     */
+    private final static Map<String, Map<AID, ArrayList<Property>>> services = new ConcurrentHashMap<>();
+    /**
+     * Зарегистрированные из этого контейнера агенты (до отмены их регистрации).
+     * Уведомления DF о них запаздывают относительно синхронных обновлений и поэтому пропускаются
+     */
+    private final static Set<AID> localAgents = ConcurrentHashMap.newKeySet();
+    /**
+     * Поиски, на которые DF ответил пустым результатом
+     * Ключ - имя сервиса
+     * Значение - свойства искомого сервиса (см. key)
+     * Записи сервиса удаляются, как только в кэш попадает агент, предоставляющий этот сервис
+     */
+    private final static Map<String, Set<String>> emptyLookups = new ConcurrentHashMap<>();
+    /**
+     * Версии сервисов (увеличиваются при каждом добавлении агента, предоставляющего сервис).
+     * Пустой ответ DF запоминается, только если за время поиска версия сервиса не изменилась
+     */
+    private final static Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    /**
+     * Количество поисков, обслуженных кэшем
+     */
+    private final static AtomicLong hits = new AtomicLong();
+    /**
+     * Количество поисков, для которых потребовалось обращение к DF
+     */
+    private final static AtomicLong misses = new AtomicLong();
+
+    /**
+     * Метод поиска агентов в кэше
+     * @param name       - имя, предоставляемого агентом сервиса
+     * @param properties - свойства, описывающие сервис
+     * @return - найденные агенты (null в случае промаха)
+     */
+    public static AID[] lookup(String name, Property... properties) {
+        ArrayList<AID> result = new ArrayList<>();
+        Map<AID, ArrayList<Property>> providers = services.get(name);
+        if (providers != null) {
+            for (var entry : providers.entrySet()) {
+                if (matches(entry.getValue(), properties)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        if (result.isEmpty() && !emptyLookups.getOrDefault(name, Set.of()).contains(key(properties))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result.toArray(new AID[0]);
+    }
+
+    /**
+     * Метод возвращает текущую версию сервиса (см. putEmpty)
+     * @param name - имя сервиса
+     */
+    public static long getVersion(String name) {
+        return versions.computeIfAbsent(name, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Метод запоминает, что DF не нашел агентов по заданному поиску.
+     * Если за время поиска в кэш попал агент этого сервиса, то результат не запоминается
+     * @param version    - версия сервиса до обращения к DF (см. getVersion)
+     * @param name       - имя сервиса
+     * @param properties - свойства, описывающие сервис
+     */
+    public static void putEmpty(long version, String name, Property... properties) {
+        synchronized (versions) {
+            if (getVersion(name) == version) {
+                emptyLookups.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet()).add(key(properties));
+            }
+        }
+    }
+
+    /**
+     * Метод добавляет в кэш описание агента, зарегистрировавшегося из этого контейнера
+     * @param dfd - описание агента, переданное в сервис желтых страниц
+     */
+    public static void register(DFAgentDescription dfd) {
+        localAgents.add(dfd.getName());
+        put(dfd);
+    }
+
+    /**
+     * Метод проверяет, регистрировался ли агент из этого контейнера
+     * @param agent - проверяемый агент
+     */
+    public static boolean isLocal(AID agent) {
+        return localAgents.contains(agent);
+    }
+
+    /**
+     * Метод добавляет (или обновляет) описание агента в кэше
+     * @param dfd - описание агента из сервиса желтых страниц
+     */
+    public static void put(DFAgentDescription dfd) {
+        removeServices(dfd.getName());
+        var serviceIterator = dfd.getAllServices();
+        while (serviceIterator.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) serviceIterator.next();
+            ArrayList<Property> properties = new ArrayList<>();
+            var propertyIterator = sd.getAllProperties();
+            while (propertyIterator.hasNext()) {
+                properties.add((Property) propertyIterator.next());
+            }
+            services.computeIfAbsent(sd.getName(), k -> new ConcurrentHashMap<>()).put(dfd.getName(), properties);
+            synchronized (versions) {
+                versions.computeIfAbsent(sd.getName(), k -> new AtomicLong()).incrementAndGet();
+                emptyLookups.remove(sd.getName());
+            }
+        }
+    }
+
+    /**
+     * Метод удаляет агента из кэша
+     * @param agent - удаляемый агент
+     */
+    public static void remove(AID agent) {
+        localAgents.remove(agent);
+        removeServices(agent);
+    }
+
+    private static void removeServices(AID agent) {
+        for (var providers : services.values()) {
+            providers.remove(agent);
+        }
+    }
+
+    /**
+     * Метод применяет к кэшу уведомление от DF.
+     * Описание без сервисов означает, что агент отменил свою регистрацию
+     * @param descriptions - описания агентов из уведомления
+     */
+    public static void update(DFAgentDescription[] descriptions) {
+        for (var dfd : descriptions) {
+            if (localAgents.contains(dfd.getName())) {
+                continue;
+            }
+            if (dfd.getAllServices().hasNext()) {
+                put(dfd);
+            } else {
+                remove(dfd.getName());
+            }
+        }
+    }
+
+    /**
+     * Метод формирует ключ поиска по свойствам сервиса
+     * @param properties - свойства, описывающие сервис
+     */
+    private static String key(Property... properties) {
+        StringBuilder result = new StringBuilder();
+        for (var property : properties) {
+            result.append(property.getName()).append("=").append(property.getValue()).append(";");
+        }
+        return result.toString();
+    }
+
+    private static boolean matches(ArrayList<Property> registered, Property... template) {
+        for (var property : template) {
+            boolean found = false;
+            for (var candidate : registered) {
+                if (candidate.getName().equals(property.getName())
+                        && Objects.equals(String.valueOf(candidate.getValue()), String.valueOf(property.getValue()))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long getHitsCount() {
+        return hits.get();
+    }
+
+    public static long getMissesCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,78 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import jade.core.AID;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс пула долгоживущих агентов-исполнителей (процессов и операций) в рамках контейнера.
+ * Освободившийся агент возвращается в пул и получает следующее задание сообщением,
+ * вместо того чтобы на каждое задание создавался и уничтожался новый агент
+ */
+public class AgentPool {
+    /**
+     * Свободные агенты-исполнители
+     * Ключ - имя сервиса исполнителей
+     * Значение - очередь свободных агентов
+     */
+    private final static Map<String, Queue<AID>> idleWorkers = new ConcurrentHashMap<>();
+    /**
+     * Счётчик для уникальных имён агентов-исполнителей
+     */
+    private final static AtomicInteger workersCount = new AtomicInteger();
+    /**
+     * Количество заданий, выданных уже существующим агентам
+     */
+    private final static AtomicLong reusedCount = new AtomicLong();
+    /**
+     * Количество заданий, для которых пришлось создать нового агента
+     */
+    private final static AtomicLong createdCount = new AtomicLong();
+
+    /**
+     * Метод для получения свободного агента-исполнителя из пула
+     * @param name - имя сервиса исполнителей
+     * @return - свободный агент или null, если пул пуст
+     */
+    public static AID acquire(String name) {
+        AID worker = idleWorkers.computeIfAbsent(name, k -> new ConcurrentLinkedQueue<>()).poll();
+        if (worker != null) {
+            reusedCount.incrementAndGet();
+        } else {
+            createdCount.incrementAndGet();
+        }
+        return worker;
+    }
+
+    /**
+     * Метод для возвращения освободившегося агента-исполнителя в пул
+     * @param name - имя сервиса исполнителей
+     * @param worker - освободившийся агент
+     */
+    public static void release(String name, AID worker) {
+        if (worker != null) {
+            idleWorkers.computeIfAbsent(name, k -> new ConcurrentLinkedQueue<>()).add(worker);
+        }
+    }
+
+    /**
+     * Метод для получения уникального имени нового агента-исполнителя
+     * @param name - имя сервиса исполнителей
+     */
+    public static String nextWorkerName(String name) {
+        return String.format("%sWorker[%d]", name, workersCount.getAndIncrement());
+    }
+
+    public static long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public static long getCreatedCount() {
+        return createdCount.get();
+    }
+}
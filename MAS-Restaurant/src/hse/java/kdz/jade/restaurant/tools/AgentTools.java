@@ -17,6 +17,7 @@ import jade.wrapper.AgentContainer;
 import jade.wrapper.StaleProxyException;
 import org.json.simple.JSONObject;
 
+import java.lang.management.ManagementFactory;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
@@ -94,6 +95,100 @@ public class AgentTools {
      * (если в консольном выводе присутствуют нечитаемые символы, её нужно отключить)
      */
     public final static boolean PRINT_COLORED_REPORTS;
+    /**
+     * Использовать ли пулы долгоживущих агентов процессов и операций?
+     * Если значение параметра равно false, то на каждый процесс и каждую операцию создаётся отдельный агент
+     */
+    public final static boolean USE_AGENT_POOLS;
+    /**
+     * Количество агентов процессов, создаваемых в пуле при запуске симуляции
+     */
+    public final static int PROCESS_POOL_SIZE;
+    /**
+     * Количество агентов операций, создаваемых в пуле при запуске симуляции
+     */
+    public final static int OPERATION_POOL_SIZE;
+    /**
+     * Использовать ли виртуальные часы симуляции?
+     * Если значение параметра равно true, то при простое всех агентов время симуляции
+     * перескакивает к ближайшему ожидающему событию (см. SimulationClock)
+     */
+    public final static boolean USE_VIRTUAL_CLOCK;
+    /**
+     * Количество посетителей, создаваемых генератором нагрузки
+     * Если значение параметра равно 0, то воспроизводятся заказы из файла visitors_orders
+     */
+    public final static int LOAD_GENERATOR_VISITORS;
+    /**
+     * Процесс поступления посетителей генератора нагрузки (constant, poisson, step)
+     */
+    public final static String LOAD_GENERATOR_ARRIVAL_PROCESS;
+    /**
+     * Базовая частота прихода посетителей генератора нагрузки (посетителей в секунду)
+     */
+    public final static double LOAD_GENERATOR_ARRIVAL_RATE;
+    /**
+     * Во сколько раз частота прихода посетителей увеличивается во время всплеска (процесс step)
+     */
+    public final static double LOAD_GENERATOR_BURST_FACTOR;
+    /**
+     * Длительность периодов базовой и повышенной частоты прихода посетителей (процесс step, мс)
+     */
+    public final static int LOAD_GENERATOR_BURST_PERIOD;
+    /**
+     * Минимальное количество блюд в заказе посетителя генератора нагрузки
+     */
+    public final static int LOAD_GENERATOR_MIN_DISHES;
+    /**
+     * Максимальное количество блюд в заказе посетителя генератора нагрузки
+     */
+    public final static int LOAD_GENERATOR_MAX_DISHES;
+    /**
+     * Использовать ли компактный двоичный кодек для содержимого сообщений агентов?
+     * Если значение параметра равно false, то объекты передаются в сообщениях с помощью Java-сериализации
+     */
+    public final static boolean USE_BINARY_MESSAGE_CODEC;
+    /**
+     * Передавать ли объекты в сообщениях по ссылке, если получатель находится в том же контейнере?
+     * Если значение параметра равно false, то объекты всегда кодируются в содержимое сообщения
+     */
+    public final static boolean USE_LOCAL_MESSAGE_PASSING;
+    /**
+     * Сохранять ли оценки времени приготовления до обновления снимка времени резервации ресурсов кухни?
+     * Если значение параметра равно false, то агент меню рассчитывает оценку заново на каждый запрос
+     */
+    public final static boolean USE_TIME_ESTIMATE_CACHE;
+    /**
+     * Количество агентов склада (шардов)
+     * Каждый агент склада хранит продукты своей части типов продуктов (см. WarehouseRouter)
+     */
+    public final static int WAREHOUSE_SHARDS_COUNT;
+    /**
+     * Назначать ли операциям повара и оборудование через агента планировщика кухни?
+     * Если значение параметра равно false, то агенты операций резервируют ресурсы самостоятельно
+     */
+    public final static boolean USE_KITCHEN_SCHEDULER;
+    /**
+     * Вместимость оборудования при объединении одинаковых операций разных заказов (работает только с USE_KITCHEN_SCHEDULER)
+     * Ключ - тип оборудования
+     * Значение - сколько одинаковых операций может одновременно выполняться на одной единице оборудования
+     * (типы оборудования, которых нет в списке, выполняют по одной операции)
+     */
+    public final static Map<Integer, Integer> OPERATION_BATCH_CAPACITIES;
+    /**
+     * Время, в течение которого планировщик кухни ждет одинаковые операции для объединения (мс)
+     */
+    public final static int OPERATION_BATCHING_WINDOW;
+    /**
+     * Наибольший возраст оценки оставшегося времени заказа, хранимой агентом заказа (мс).
+     * Оценка, не пересчитанная за это время по ходу приготовления блюд, пересчитывается заново
+     */
+    public final static int ORDER_ETA_STALENESS_THRESHOLD;
+    /**
+     * Окно приема заказов (мс). Заказы, поступившие в течение окна, проверяются и передаются на кухню
+     * одной группой (0 - каждый заказ принимается отдельно)
+     */
+    public final static int ORDER_ADMISSION_WINDOW;
     //--------------------------------КОНФИГУРАЦИЯ ПЛАТФОРМЫ JADE--------------------------------
     /**
      * Отображать ли GUI платформы JADE?
@@ -140,6 +235,32 @@ public class AgentTools {
             VISITOR_WAITING_TIME = Integer.parseInt(options.get("VISITOR_WAITING_TIME").toString()) * SIMULATION_DECELERATION_FACTOR;
             CHECK_OPERATION_TYPE_AVAILABILITY = (boolean) options.get("CHECK_OPERATION_TYPE_AVAILABILITY");
             PRINT_COLORED_REPORTS = (boolean) options.get("PRINT_COLORED_REPORTS");
+            USE_AGENT_POOLS = (boolean) options.get("USE_AGENT_POOLS");
+            PROCESS_POOL_SIZE = Integer.parseInt(options.get("PROCESS_POOL_SIZE").toString());
+            OPERATION_POOL_SIZE = Integer.parseInt(options.get("OPERATION_POOL_SIZE").toString());
+            USE_VIRTUAL_CLOCK = (boolean) options.get("USE_VIRTUAL_CLOCK");
+            LOAD_GENERATOR_VISITORS = Integer.parseInt(options.get("LOAD_GENERATOR_VISITORS").toString());
+            LOAD_GENERATOR_ARRIVAL_PROCESS = options.get("LOAD_GENERATOR_ARRIVAL_PROCESS").toString();
+            LOAD_GENERATOR_ARRIVAL_RATE = Double.parseDouble(options.get("LOAD_GENERATOR_ARRIVAL_RATE").toString());
+            LOAD_GENERATOR_BURST_FACTOR = Double.parseDouble(options.get("LOAD_GENERATOR_BURST_FACTOR").toString());
+            LOAD_GENERATOR_BURST_PERIOD = Integer.parseInt(options.get("LOAD_GENERATOR_BURST_PERIOD").toString());
+            LOAD_GENERATOR_MIN_DISHES = Integer.parseInt(options.get("LOAD_GENERATOR_MIN_DISHES").toString());
+            LOAD_GENERATOR_MAX_DISHES = Integer.parseInt(options.get("LOAD_GENERATOR_MAX_DISHES").toString());
+            USE_BINARY_MESSAGE_CODEC = (boolean) options.get("USE_BINARY_MESSAGE_CODEC");
+            USE_LOCAL_MESSAGE_PASSING = (boolean) options.get("USE_LOCAL_MESSAGE_PASSING");
+            USE_TIME_ESTIMATE_CACHE = (boolean) options.get("USE_TIME_ESTIMATE_CACHE");
+            WAREHOUSE_SHARDS_COUNT = Integer.parseInt(options.get("WAREHOUSE_SHARDS_COUNT").toString());
+            USE_KITCHEN_SCHEDULER = (boolean) options.get("USE_KITCHEN_SCHEDULER");
+            HashMap<Integer, Integer> batchCapacities = new HashMap<>();
+            JSONObject batchCapacitiesJSON = (JSONObject) options.get("OPERATION_BATCH_CAPACITIES");
+            for (var equipmentType : batchCapacitiesJSON.keySet()) {
+                batchCapacities.put(Integer.parseInt(equipmentType.toString()),
+                        Integer.parseInt(batchCapacitiesJSON.get(equipmentType).toString()));
+            }
+            OPERATION_BATCH_CAPACITIES = Collections.unmodifiableMap(batchCapacities);
+            OPERATION_BATCHING_WINDOW = Integer.parseInt(options.get("OPERATION_BATCHING_WINDOW").toString()) * SIMULATION_DECELERATION_FACTOR;
+            ORDER_ETA_STALENESS_THRESHOLD = Integer.parseInt(options.get("ORDER_ETA_STALENESS_THRESHOLD").toString()) * SIMULATION_DECELERATION_FACTOR;
+            ORDER_ADMISSION_WINDOW = Integer.parseInt(options.get("ORDER_ADMISSION_WINDOW").toString()) * SIMULATION_DECELERATION_FACTOR;
             SHOW_GUI = (boolean) options.get("SHOW_GUI");
             JADE_MESSAGE_MANAGER_POOL_SIZE = (long) options.get("JADE_MESSAGE_MANAGER_POOL_SIZE");
             JADE_MESSAGE_MANAGER_MAX_QUEUE_SIZE = (long) options.get("JADE_MESSAGE_MANAGER_MAX_QUEUE_SIZE");
@@ -161,6 +282,26 @@ public class AgentTools {
             VISITOR_WAITING_TIME = 10000 * SIMULATION_DECELERATION_FACTOR;
             CHECK_OPERATION_TYPE_AVAILABILITY = true;
             PRINT_COLORED_REPORTS = false;
+            USE_AGENT_POOLS = true;
+            PROCESS_POOL_SIZE = 10;
+            OPERATION_POOL_SIZE = 10;
+            USE_VIRTUAL_CLOCK = false;
+            LOAD_GENERATOR_VISITORS = 0;
+            LOAD_GENERATOR_ARRIVAL_PROCESS = "poisson";
+            LOAD_GENERATOR_ARRIVAL_RATE = 2;
+            LOAD_GENERATOR_BURST_FACTOR = 4;
+            LOAD_GENERATOR_BURST_PERIOD = 5000;
+            LOAD_GENERATOR_MIN_DISHES = 1;
+            LOAD_GENERATOR_MAX_DISHES = 4;
+            USE_BINARY_MESSAGE_CODEC = true;
+            USE_LOCAL_MESSAGE_PASSING = true;
+            USE_TIME_ESTIMATE_CACHE = true;
+            WAREHOUSE_SHARDS_COUNT = 1;
+            USE_KITCHEN_SCHEDULER = true;
+            OPERATION_BATCH_CAPACITIES = Map.of(25, 4);
+            OPERATION_BATCHING_WINDOW = 100 * SIMULATION_DECELERATION_FACTOR;
+            ORDER_ETA_STALENESS_THRESHOLD = 500 * SIMULATION_DECELERATION_FACTOR;
+            ORDER_ADMISSION_WINDOW = 50 * SIMULATION_DECELERATION_FACTOR;
             SHOW_GUI = true;
             JADE_MESSAGE_MANAGER_POOL_SIZE = 1000;
             JADE_MESSAGE_MANAGER_MAX_QUEUE_SIZE = 500000000;
@@ -194,6 +335,10 @@ public class AgentTools {
      * Отчеты операций
      */
     private final static ArrayList<OperationReport> operationsReports = new ArrayList<>();
+    /**
+     * Время приема заказов: от запроса посетителя до готовности агента заказа (с)
+     */
+    private final static ArrayList<Double> orderIntakeTimes = new ArrayList<>();
 
     /**
      * Метод запускает платформу JADE и создаёт в ней агента симуляции
@@ -284,6 +429,41 @@ public class AgentTools {
         return null;
     }
 
+    /**
+     * Метод для подсчета продуктов, необходимых для приготовления блюда
+     * (количество продуктов одного типа, используемых в разных операциях, суммируется)
+     * @param dishCard - карточка блюда
+     * @return - необходимые продукты (ключ - тип продукта, значение - суммарное количество)
+     */
+    public static LinkedHashMap<Integer, Double> calculateRequiredProducts(DishCard dishCard) {
+        LinkedHashMap<Integer, Double> requiredProducts = new LinkedHashMap<>();
+        for (var operation : dishCard.getOperations()) {
+            for (var product : operation.getProducts()) {
+                requiredProducts.merge(product.getType(), product.getQuantity(), Double::sum);
+            }
+        }
+        return requiredProducts;
+    }
+
+    /**
+     * Метод для поиска конца этапа операций карточки блюда.
+     * Этап - подряд идущие операции с одной и той же ненулевой точкой асинхронности (см. Operation.getAsyncPoint),
+     * либо одна операция с нулевой точкой асинхронности
+     * @param operations - операции карточки блюда
+     * @param stageStart - номер первой операции этапа
+     * @return - номер первой операции следующего этапа
+     */
+    public static int findStageEnd(List<Operation> operations, int stageStart) {
+        int asyncPoint = operations.get(stageStart).getAsyncPoint();
+        int stageEnd = stageStart + 1;
+        if (asyncPoint != 0) {
+            while (stageEnd < operations.size() && operations.get(stageEnd).getAsyncPoint() == asyncPoint) {
+                stageEnd++;
+            }
+        }
+        return stageEnd;
+    }
+
     /**
      * Метод для поиска названия типа операции по его id
      * @param typeId - id типа операции
@@ -317,14 +497,43 @@ public class AgentTools {
     }
 
     /**
-     * Метод, копирующий структуру для хранения времени всего оборудования на кухне
+     * Метод для вычисления абсолютного момента времени (по часам симуляции SimulationClock),
+     * наступающего через заданное количество секунд
+     * @param seconds - количество секунд
+     * @return - дедлайн в наносекундах
      */
-    public static HashMap<Integer, ArrayList<Double>> copyEquipmentHashMap(HashMap<Integer, ArrayList<Double>> source) {
-        HashMap<Integer, ArrayList<Double>> copy = new HashMap<>();
-        for (Map.Entry<Integer, ArrayList<Double>> entry : source.entrySet()) {
-            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+    public static long deadlineAfter(double seconds) {
+        return SimulationClock.nanoTime() + (long) (seconds * 1e9);
+    }
+
+    /**
+     * Метод для вычисления времени, оставшегося до дедлайна
+     * @param deadline - дедлайн в наносекундах (см. deadlineAfter)
+     * @return - оставшееся время в секундах (не меньше нуля)
+     */
+    public static double secondsUntil(long deadline) {
+        return Math.max(0, (deadline - SimulationClock.nanoTime()) / 1e9);
+    }
+
+    /**
+     * Метод для вычисления времени, оставшегося до дедлайна, в миллисекундах
+     * (округляется вверх, чтобы пробуждение не наступило раньше дедлайна)
+     * @param deadline - дедлайн в наносекундах (см. deadlineAfter)
+     * @return - оставшееся время в миллисекундах (не меньше нуля)
+     */
+    public static long millisUntil(long deadline) {
+        return Math.max(0, (deadline - SimulationClock.nanoTime() + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Метод для получения процессорного времени, затраченного всей JVM
+     * @return - процессорное время в наносекундах (-1, если не поддерживается платформой)
+     */
+    public static long getProcessCpuTime() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
         }
-        return copy;
+        return -1;
     }
 
     /**
@@ -402,4 +611,27 @@ public class AgentTools {
         operationReport.formatDates();
         operationsReports.add(operationReport);
     }
+
+    public static synchronized void addOrderIntakeTime(double seconds) {
+        orderIntakeTimes.add(seconds);
+    }
+
+    public static synchronized int getOrderIntakeTimesCount() {
+        return orderIntakeTimes.size();
+    }
+
+    /**
+     * Метод для получения перцентиля времени приема заказов
+     * @param percentile - перцентиль (от 0 до 100)
+     * @return - время приема заказа в секундах (0, если заказов не было)
+     */
+    public static synchronized double getOrderIntakeTimePercentile(double percentile) {
+        if (orderIntakeTimes.isEmpty()) {
+            return 0;
+        }
+        ArrayList<Double> sortedTimes = new ArrayList<>(orderIntakeTimes);
+        Collections.sort(sortedTimes);
+        int index = (int) Math.ceil(percentile / 100 * sortedTimes.size()) - 1;
+        return sortedTimes.get(Math.max(0, Math.min(sortedTimes.size() - 1, index)));
+    }
 }
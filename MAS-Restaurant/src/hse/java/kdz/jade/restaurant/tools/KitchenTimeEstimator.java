@@ -0,0 +1,264 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import hse.java.kdz.jade.restaurant.types.DishCard;
+import hse.java.kdz.jade.restaurant.types.Operation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.SIMULATION_DECELERATION_FACTOR;
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.findStageEnd;
+
+/**
+ * Класс оценщика времени работы кухни.
+ * Хранит время, оставшееся до конца резервации поваров и оборудования, в двоичных кучах (минимум в корне)
+ * на массивах double: отдельная куча для поваров и по куче на каждый тип оборудования,
+ * типы оборудования пронумерованы подряд (см. DataParser.Data.equipmentTypes).
+ * Расчеты не выделяют память: для расчета цепочки блюд кучи копируются в заранее выделенный рабочий буфер
+ */
+public class KitchenTimeEstimator {
+    /**
+     * Порядковый номер типа оборудования по его id (-1, если тип неизвестен)
+     */
+    private final int[] equipmentOrdinals;
+    /**
+     * Куча времен резервации поваров
+     */
+    private double[] cookTimes = new double[4];
+    private int cookCount = 0;
+    /**
+     * Кучи времен резервации оборудования
+     * Индекс - порядковый номер типа оборудования
+     */
+    private final double[][] equipmentTimes;
+    private final int[] equipmentCounts;
+    /**
+     * Рабочие буферы для расчета цепочки блюд
+     */
+    private double[] scratchCookTimes = new double[0];
+    private final double[][] scratchEquipmentTimes;
+    /**
+     * Типы оборудования, резервация которых изменилась при расчете текущего блюда
+     */
+    private final boolean[] touchedEquipment;
+
+    public KitchenTimeEstimator() {
+        int maxTypeId = -1;
+        for (var equipmentType : DataParser.Data.equipmentTypes) {
+            maxTypeId = Math.max(maxTypeId, equipmentType.getId());
+        }
+        equipmentOrdinals = new int[maxTypeId + 1];
+        Arrays.fill(equipmentOrdinals, -1);
+        int ordinal = 0;
+        for (var equipmentType : DataParser.Data.equipmentTypes) {
+            if (equipmentType.getId() >= 0 && equipmentOrdinals[equipmentType.getId()] < 0) {
+                equipmentOrdinals[equipmentType.getId()] = ordinal++;
+            }
+        }
+        equipmentTimes = new double[ordinal][4];
+        equipmentCounts = new int[ordinal];
+        scratchEquipmentTimes = new double[ordinal][0];
+        touchedEquipment = new boolean[ordinal];
+    }
+
+    /**
+     * Метод добавляет время резервации повара
+     * @param time - время до конца резервации (с.)
+     */
+    public void addCookTime(double time) {
+        if (cookCount == cookTimes.length) {
+            cookTimes = Arrays.copyOf(cookTimes, cookCount * 2);
+        }
+        cookTimes[cookCount] = time;
+        siftUp(cookTimes, cookCount++);
+    }
+
+    /**
+     * Метод добавляет время резервации единицы оборудования
+     * @param equipmentType - тип оборудования
+     * @param time - время до конца резервации (с.)
+     */
+    public void addEquipmentTime(int equipmentType, double time) {
+        int ordinal = ordinalOf(equipmentType);
+        if (ordinal < 0) {
+            return;
+        }
+        if (equipmentCounts[ordinal] == equipmentTimes[ordinal].length) {
+            equipmentTimes[ordinal] = Arrays.copyOf(equipmentTimes[ordinal], equipmentCounts[ordinal] * 2);
+        }
+        equipmentTimes[ordinal][equipmentCounts[ordinal]] = time;
+        siftUp(equipmentTimes[ordinal], equipmentCounts[ordinal]++);
+    }
+
+    /**
+     * Метод для расчета времени операций, работающий в двух режимах:
+     * 1) Метод рассчитывает общее время простоя кухни при выполнении серии операций
+     * 2) Метод рассчитывает оставшееся время до конца выполнения серии операции
+     * Операции одного этапа (см. AgentTools.findStageEnd) выполняются параллельно: время этапа -
+     * наибольшее из времен его операций, время простоя этапа - наибольшее из времен ожидания его операций
+     * @param operations - массив операций
+     * @param calculateWaitingTime - режим работы
+     * @return - рассчитанное время
+     */
+    public double calculateOperationsTime(List<Operation> operations, boolean calculateWaitingTime) {
+        if (operations.size() == 0) {
+            return 0;
+        }
+        double totalTime = 0;
+        double totalWaitingTime = 0;
+        for (int stageStart = 0, stageEnd; stageStart < operations.size(); stageStart = stageEnd) {
+            stageEnd = findStageEnd(operations, stageStart);
+            double stageTime = totalTime;
+            double stageWaitingTime = 0;
+            for (int i = stageStart; i < stageEnd; i++) {
+                Operation operation = operations.get(i);
+                double readyTime = minEquipmentTime(equipmentTimes, operation.getEquipmentType());
+                if (stageStart == 0) {
+                    readyTime = Math.max(readyTime, cookCount > 0 ? cookTimes[0] : 0);
+                }
+                double waitingTime = Math.max(0, readyTime - totalTime);
+                stageTime = Math.max(stageTime, totalTime + waitingTime + operation.getTime() * SIMULATION_DECELERATION_FACTOR);
+                stageWaitingTime = Math.max(stageWaitingTime, waitingTime);
+            }
+            totalTime = stageTime;
+            totalWaitingTime += stageWaitingTime;
+        }
+        return calculateWaitingTime ? totalWaitingTime : totalTime;
+    }
+
+    /**
+     * Метод для расчёта общего времени приготовления цепочки из блюд.
+     * Блюда готовятся по очереди: каждое блюдо занимает наименее загруженного повара
+     * и наименее загруженное оборудование нужных типов, операции одного этапа блюда выполняются параллельно,
+     * и каждая из них занимает своего наименее загруженного повара и своё наименее загруженное оборудование
+     * @param dishCards - массив карточек блюд
+     * @return - рассчитанное время
+     */
+    public double calculateDishesTime(List<DishCard> dishCards) {
+        if (dishCards.size() == 0) {
+            return 0;
+        }
+        if (scratchCookTimes.length < cookCount) {
+            scratchCookTimes = new double[cookTimes.length];
+        }
+        System.arraycopy(cookTimes, 0, scratchCookTimes, 0, cookCount);
+        for (int k = 0; k < equipmentCounts.length; k++) {
+            if (scratchEquipmentTimes[k].length < equipmentCounts[k]) {
+                scratchEquipmentTimes[k] = new double[equipmentTimes[k].length];
+            }
+            System.arraycopy(equipmentTimes[k], 0, scratchEquipmentTimes[k], 0, equipmentCounts[k]);
+        }
+        double maxTotalTime = 0;
+        for (int i = 0; i < dishCards.size(); i++) {
+            List<Operation> operations = dishCards.get(i).getOperations();
+            double cookTime = cookCount > 0 ? scratchCookTimes[0] : 0;
+            double totalTime = 0;
+            for (int stageStart = 0, stageEnd; stageStart < operations.size(); stageStart = stageEnd) {
+                stageEnd = findStageEnd(operations, stageStart);
+                // Операции этапа начинаются одновременно, после завершения предыдущего этапа
+                boolean parallel = stageEnd - stageStart > 1;
+                if (parallel) {
+                    restoreScratchHeaps();
+                }
+                double stageTime = totalTime;
+                for (int j = stageStart; j < stageEnd; j++) {
+                    Operation operation = operations.get(j);
+                    double operationTime = operation.getTime() * SIMULATION_DECELERATION_FACTOR;
+                    double equipmentTime = minEquipmentTime(scratchEquipmentTimes, operation.getEquipmentType());
+                    if (parallel && stageStart == 0) {
+                        cookTime = cookCount > 0 ? scratchCookTimes[0] : 0;
+                    }
+                    stageTime = Math.max(stageTime, Math.max(stageStart == 0 ? cookTime : totalTime, equipmentTime) + operationTime);
+                    // Последовательные операции блюда выполняет один и тот же повар на одном и том же оборудовании:
+                    // время добавляется к корню кучи без восстановления её порядка.
+                    // Параллельная операция занимает наименее загруженных повара и оборудование,
+                    // поэтому порядок кучи восстанавливается сразу
+                    if (cookCount > 0) {
+                        scratchCookTimes[0] += operationTime;
+                        if (parallel) {
+                            siftDown(scratchCookTimes, cookCount);
+                        }
+                    }
+                    int ordinal = ordinalOf(operation.getEquipmentType());
+                    if (ordinal >= 0 && equipmentCounts[ordinal] > 0) {
+                        scratchEquipmentTimes[ordinal][0] += operationTime;
+                        if (parallel) {
+                            siftDown(scratchEquipmentTimes[ordinal], equipmentCounts[ordinal]);
+                        } else {
+                            touchedEquipment[ordinal] = true;
+                        }
+                    }
+                }
+                totalTime = stageTime;
+            }
+            maxTotalTime = Math.max(maxTotalTime, totalTime);
+            restoreScratchHeaps();
+        }
+        return maxTotalTime;
+    }
+
+    /**
+     * Метод восстанавливает порядок рабочих куч после добавления времени к их корням
+     */
+    private void restoreScratchHeaps() {
+        siftDown(scratchCookTimes, cookCount);
+        for (int k = 0; k < touchedEquipment.length; k++) {
+            if (touchedEquipment[k]) {
+                siftDown(scratchEquipmentTimes[k], equipmentCounts[k]);
+                touchedEquipment[k] = false;
+            }
+        }
+    }
+
+    private int ordinalOf(int equipmentType) {
+        return equipmentType >= 0 && equipmentType < equipmentOrdinals.length ? equipmentOrdinals[equipmentType] : -1;
+    }
+
+    /**
+     * Метод возвращает наименьшее время резервации оборудования заданного типа
+     * (0 для операций без оборудования и типов без оборудования)
+     */
+    private double minEquipmentTime(double[][] heaps, int equipmentType) {
+        int ordinal = ordinalOf(equipmentType);
+        return ordinal >= 0 && equipmentCounts[ordinal] > 0 ? heaps[ordinal][0] : 0;
+    }
+
+    private static void siftUp(double[] heap, int index) {
+        double value = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * Метод восстанавливает порядок кучи после увеличения значения в её корне
+     */
+    private static void siftDown(double[] heap, int size) {
+        if (size < 2) {
+            return;
+        }
+        double value = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+}
@@ -0,0 +1,125 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import hse.java.kdz.jade.restaurant.types.MenuDish;
+import hse.java.kdz.jade.restaurant.types.VisitorOrder;
+import hse.java.kdz.jade.restaurant.types.VisitorOrderedDish;
+
+import java.util.ArrayList;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.*;
+
+/**
+ * Класс генератора синтетической нагрузки.
+ * Создает заказы посетителей из активных блюд меню вместо заказов из файла visitors_orders
+ * и рассчитывает интервалы между приходами посетителей согласно заданному процессу поступления:
+ * 1) constant - посетители приходят с постоянной частотой
+ * 2) poisson - пуассоновский поток (экспоненциальные интервалы между приходами)
+ * 3) step - пуассоновский поток, частота которого чередуется между базовой и повышенной (всплеск)
+ * каждые LOAD_GENERATOR_BURST_PERIOD мс
+ */
+public class LoadGenerator {
+    /**
+     * Активные блюда меню, из которых составляются заказы
+     */
+    private final ArrayList<MenuDish> activeMenuDishes = new ArrayList<>();
+    /**
+     * Количество уже созданных посетителей
+     */
+    private int generatedCount = 0;
+    /**
+     * Id очередного заказанного блюда
+     */
+    private int nextOrderedDishID = 1;
+    /**
+     * Момент прихода первого посетителя (по часам симуляции)
+     */
+    private long firstArrivalNanos;
+    /**
+     * Момент прихода последнего посетителя (по часам симуляции)
+     */
+    private long lastArrivalNanos;
+
+    public LoadGenerator() {
+        for (var menuDish : DataParser.Data.menuDishes) {
+            if (menuDish.isActive()) {
+                activeMenuDishes.add(menuDish);
+            }
+        }
+        for (var visitorOrder : DataParser.Data.visitorOrders) {
+            for (var orderedDish : visitorOrder.getDishes()) {
+                nextOrderedDishID = Math.max(nextOrderedDishID, orderedDish.getId() + 1);
+            }
+        }
+    }
+
+    /**
+     * Метод проверяет, остались ли еще посетители для генерации
+     */
+    public boolean hasNext() {
+        return generatedCount < LOAD_GENERATOR_VISITORS && !activeMenuDishes.isEmpty();
+    }
+
+    /**
+     * Метод создает заказ очередного посетителя
+     * @return - заказ посетителя
+     */
+    public VisitorOrder next() {
+        long now = SimulationClock.nanoTime();
+        if (generatedCount == 0) {
+            firstArrivalNanos = now;
+        }
+        lastArrivalNanos = now;
+        generatedCount++;
+        int dishesCount = LOAD_GENERATOR_MIN_DISHES + rand.nextInt(LOAD_GENERATOR_MAX_DISHES - LOAD_GENERATOR_MIN_DISHES + 1);
+        ArrayList<VisitorOrderedDish> dishes = new ArrayList<>(dishesCount);
+        for (int i = 0; i < dishesCount; ++i) {
+            MenuDish menuDish = activeMenuDishes.get(rand.nextInt(activeMenuDishes.size()));
+            dishes.add(new VisitorOrderedDish(nextOrderedDishID++, menuDish.getId()));
+        }
+        return new VisitorOrder("GeneratedVisitor" + generatedCount, null, null, 0, dishes);
+    }
+
+    /**
+     * Метод рассчитывает задержку до прихода следующего посетителя
+     * @return - задержка в миллисекундах
+     */
+    public long nextDelay() {
+        double rate = LOAD_GENERATOR_ARRIVAL_RATE;
+        double interval;
+        switch (LOAD_GENERATOR_ARRIVAL_PROCESS) {
+            case "constant" -> interval = 1 / rate;
+            case "step" -> {
+                long period = (SimulationClock.nanoTime() - firstArrivalNanos) / 1_000_000 / LOAD_GENERATOR_BURST_PERIOD;
+                if (period % 2 == 1) {
+                    rate *= LOAD_GENERATOR_BURST_FACTOR;
+                }
+                interval = -Math.log(1 - rand.nextDouble()) / rate;
+            }
+            default -> interval = -Math.log(1 - rand.nextDouble()) / rate;
+        }
+        return Math.round(interval * 1000 * SIMULATION_DECELERATION_FACTOR);
+    }
+
+    /**
+     * Метод возвращает общее количество посетителей, которых создаст генератор
+     */
+    public int getVisitorsCount() {
+        return activeMenuDishes.isEmpty() ? 0 : LOAD_GENERATOR_VISITORS;
+    }
+
+    public int getGeneratedCount() {
+        return generatedCount;
+    }
+
+    /**
+     * Метод рассчитывает фактически достигнутую частоту прихода посетителей
+     * @return - посетителей в секунду (по часам симуляции)
+     */
+    public double getAchievedArrivalRate() {
+        double seconds = (lastArrivalNanos - firstArrivalNanos) / 1e9;
+        if (generatedCount < 2 || seconds <= 0) {
+            return 0;
+        }
+        return (generatedCount - 1) / seconds;
+    }
+}
@@ -0,0 +1,383 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import hse.java.kdz.jade.restaurant.types.*;
+import jade.core.AID;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс компактного двоичного кодека содержимого сообщений агентов.
+ * Используется вместо стандартной Java-сериализации (ACLMessage.setContentObject) для типов,
+ * которыми агенты обмениваются на каждом цикле управления кухней и каждом запросе времени:
+ * списков DishData, DishCard, MenuDish, Operation, VisitorOrderedDish и OperationProduct.
+ * Карточки блюд и блюда меню передаются только своими id, получатель восстанавливает их из каталога (DataParser.Data).
+ * Остальные объекты (заказы посетителей, задания процессов и операций) кодируются Java-сериализацией.
+ * Формат: байт тега, затем поля объекта; целые числа записываются в формате varint.
+ * Получателю из того же контейнера объект может передаваться по ссылке (см. encodeReference):
+ * в сообщении передается лишь номер объекта в таблице объектов, передаваемых этому получателю.
+ * Таблица получателя очищается при его удалении (см. releaseReferences), поэтому объекты из сообщений,
+ * которые получатель так и не прочитал, не переживают его
+ */
+public class MessageCodec {
+    private final static byte TAG_SERIALIZED = 0;
+    private final static byte TAG_LIST = 1;
+    private final static byte TAG_DISH_DATA = 2;
+    private final static byte TAG_DISH_CARD = 3;
+    private final static byte TAG_MENU_DISH = 4;
+    private final static byte TAG_OPERATION = 5;
+    private final static byte TAG_OPERATION_PRODUCT = 6;
+    private final static byte TAG_VISITOR_ORDERED_DISH = 7;
+    private final static byte TAG_REFERENCE = 8;
+    /**
+     * Каталог карточек блюд по их id
+     */
+    private final static HashMap<Integer, DishCard> dishCards = new HashMap<>();
+    /**
+     * Каталог блюд меню по их id
+     */
+    private final static HashMap<Integer, MenuDish> menuDishes = new HashMap<>();
+    /**
+     * Таблицы объектов, переданных по ссылке и еще не полученных адресатами
+     * Ключ - агент-получатель
+     * Значение - объекты, переданные получателю (ключ - номер объекта)
+     */
+    private final static ConcurrentHashMap<AID, ConcurrentHashMap<Integer, Object>> references = new ConcurrentHashMap<>();
+    /**
+     * Номер очередного объекта, передаваемого по ссылке
+     */
+    private final static AtomicInteger nextReference = new AtomicInteger();
+    /**
+     * Количество объектов, переданных по ссылке
+     */
+    private final static AtomicLong referencesCount = new AtomicLong();
+    /**
+     * Количество закодированных сообщений
+     */
+    private final static AtomicLong encodedCount = new AtomicLong();
+    /**
+     * Суммарный размер закодированного содержимого сообщений (байт)
+     */
+    private final static AtomicLong encodedBytes = new AtomicLong();
+
+    static {
+        for (var dishCard : DataParser.Data.dishCards) {
+            dishCards.put(dishCard.getId(), dishCard);
+        }
+        for (var menuDish : DataParser.Data.menuDishes) {
+            menuDishes.put(menuDish.getId(), menuDish);
+        }
+    }
+
+    /**
+     * Метод кодирования объекта в содержимое сообщения
+     * @param object - кодируемый объект
+     * @return - закодированное содержимое
+     */
+    public static byte[] encode(Serializable object) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        byte tag = tagOf(object);
+        if (object instanceof ArrayList<?> list) {
+            byte elementTag = list.isEmpty() ? TAG_SERIALIZED : tagOf(list.get(0));
+            for (var element : list) {
+                if (tagOf(element) != elementTag) {
+                    elementTag = TAG_SERIALIZED;
+                    break;
+                }
+            }
+            if (list.isEmpty() || elementTag != TAG_SERIALIZED) {
+                out.writeByte(TAG_LIST);
+                out.writeByte(elementTag);
+                writeVarInt(out, list.size());
+                for (var element : list) {
+                    write(out, elementTag, element);
+                }
+            } else {
+                tag = TAG_SERIALIZED;
+            }
+        }
+        if (tag != TAG_LIST) {
+            out.writeByte(tag);
+            write(out, tag, object);
+        }
+        out.flush();
+        encodedCount.incrementAndGet();
+        encodedBytes.addAndGet(buffer.size());
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Метод кодирования объекта для передачи по ссылке получателю из того же контейнера.
+     * Неизменяемые объекты передаются как есть, изменяемые (списки, DishData) копируются при отправке,
+     * чтобы отправитель и получатель не работали с одним и тем же объектом
+     * @param object - передаваемый объект
+     * @param receiver - агент-получатель из того же контейнера
+     * @return - содержимое сообщения со ссылкой на объект или null, если объект нельзя безопасно передать по ссылке
+     */
+    public static byte[] encodeReference(Serializable object, AID receiver) throws IOException {
+        Object copy = copyOnSend(object);
+        if (copy == null) {
+            return null;
+        }
+        int reference = nextReference.getAndIncrement();
+        ConcurrentHashMap<Integer, Object> receiverReferences = references.computeIfAbsent(receiver, k -> new ConcurrentHashMap<>());
+        receiverReferences.put(reference, copy);
+        // Получатель мог быть удален одновременно с отправкой (отмена регистрации предшествует очистке его таблицы)
+        if (!AgentDirectory.isLocal(receiver)) {
+            receiverReferences.remove(reference);
+            return null;
+        }
+        referencesCount.incrementAndGet();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(6);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(TAG_REFERENCE);
+        writeVarInt(out, reference);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Метод проверяет, передан ли объект в содержимом сообщения по ссылке
+     * @param content - содержимое сообщения
+     */
+    public static boolean isReference(byte[] content) {
+        return content != null && content.length > 0 && content[0] == TAG_REFERENCE;
+    }
+
+    /**
+     * Метод копирования объекта при передаче по ссылке
+     * @return - объект, который можно передать получателю, или null для неподдерживаемых изменяемых типов
+     */
+    private static Object copyOnSend(Object object) {
+        if (object instanceof DishData dishData) {
+            DishData copy = new DishData(dishData.getDishCard(), dishData.getDishAgent(), dishData.getPriority());
+            copy.setWaitingTime(dishData.getWaitingTime());
+            return copy;
+        } else if (object instanceof ArrayList<?> list) {
+            ArrayList<Object> copy = new ArrayList<>(list.size());
+            for (var element : list) {
+                Object elementCopy = copyOnSend(element);
+                if (elementCopy == null) {
+                    return null;
+                }
+                copy.add(elementCopy);
+            }
+            return copy;
+        } else if (object instanceof DishCard || object instanceof MenuDish || object instanceof Operation
+                || object instanceof OperationProduct || object instanceof VisitorOrderedDish
+                || object instanceof ProcessTask || object instanceof OperationTask) {
+            return object;
+        }
+        return null;
+    }
+
+    /**
+     * Метод удаляет все объекты, переданные агенту по ссылке и не полученные им.
+     * Вызывается при удалении агента, после отмены его регистрации в сервисе желтых страниц
+     * @param receiver - удаляемый агент
+     */
+    public static void releaseReferences(AID receiver) {
+        references.remove(receiver);
+    }
+
+    /**
+     * Метод декодирования объекта из содержимого сообщения
+     * @param content - закодированное содержимое
+     * @return - декодированный объект
+     */
+    public static Object decode(byte[] content) throws IOException {
+        return decode(content, null);
+    }
+
+    /**
+     * Метод декодирования объекта из содержимого сообщения
+     * @param content - закодированное содержимое
+     * @param receiver - агент, получивший сообщение (для объектов, переданных по ссылке)
+     * @return - декодированный объект
+     */
+    public static Object decode(byte[] content, AID receiver) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        byte tag = in.readByte();
+        if (tag == TAG_REFERENCE) {
+            int reference = readVarInt(in);
+            ConcurrentHashMap<Integer, Object> receiverReferences = receiver != null ? references.get(receiver) : null;
+            Object object = receiverReferences != null ? receiverReferences.remove(reference) : null;
+            if (object == null) {
+                throw new InvalidObjectException("Объект " + reference + " уже получен или не был передан");
+            }
+            return object;
+        }
+        if (tag == TAG_LIST) {
+            byte elementTag = in.readByte();
+            int size = readVarInt(in);
+            ArrayList<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                list.add(read(in, elementTag));
+            }
+            return list;
+        }
+        return read(in, tag);
+    }
+
+    /**
+     * Метод определения тега объекта.
+     * Карточки и блюда меню кодируются по id, только если это объекты каталога
+     */
+    private static byte tagOf(Object object) {
+        if (object instanceof DishData dishData) {
+            return dishCards.get(dishData.getDishCard().getId()) == dishData.getDishCard() ? TAG_DISH_DATA : TAG_SERIALIZED;
+        } else if (object instanceof DishCard dishCard) {
+            return dishCards.get(dishCard.getId()) == dishCard ? TAG_DISH_CARD : TAG_SERIALIZED;
+        } else if (object instanceof MenuDish menuDish) {
+            return menuDishes.get(menuDish.getId()) == menuDish ? TAG_MENU_DISH : TAG_SERIALIZED;
+        } else if (object instanceof Operation) {
+            return TAG_OPERATION;
+        } else if (object instanceof OperationProduct) {
+            return TAG_OPERATION_PRODUCT;
+        } else if (object instanceof VisitorOrderedDish) {
+            return TAG_VISITOR_ORDERED_DISH;
+        } else if (object instanceof ArrayList<?>) {
+            return TAG_LIST;
+        }
+        return TAG_SERIALIZED;
+    }
+
+    private static void write(DataOutputStream out, byte tag, Object object) throws IOException {
+        switch (tag) {
+            case TAG_DISH_DATA -> {
+                DishData dishData = (DishData) object;
+                writeVarInt(out, dishData.getDishCard().getId());
+                out.writeUTF(dishData.getDishAgent().getName());
+                writeVarInt(out, dishData.getPriority());
+                out.writeDouble(dishData.getWaitingTime());
+            }
+            case TAG_DISH_CARD -> writeVarInt(out, ((DishCard) object).getId());
+            case TAG_MENU_DISH -> writeVarInt(out, ((MenuDish) object).getId());
+            case TAG_OPERATION -> {
+                Operation operation = (Operation) object;
+                writeVarInt(out, operation.getType());
+                writeVarInt(out, operation.getEquipmentType());
+                out.writeDouble(operation.getTime());
+                writeVarInt(out, operation.getAsyncPoint());
+                writeVarInt(out, operation.getProducts().size());
+                for (var product : operation.getProducts()) {
+                    write(out, TAG_OPERATION_PRODUCT, product);
+                }
+            }
+            case TAG_OPERATION_PRODUCT -> {
+                OperationProduct product = (OperationProduct) object;
+                writeVarInt(out, product.getType());
+                out.writeDouble(product.getQuantity());
+            }
+            case TAG_VISITOR_ORDERED_DISH -> {
+                VisitorOrderedDish orderedDish = (VisitorOrderedDish) object;
+                writeVarInt(out, orderedDish.getId());
+                writeVarInt(out, orderedDish.getDish());
+            }
+            default -> {
+                ObjectOutputStream objectOut = new ObjectOutputStream(out);
+                objectOut.writeObject(object);
+                objectOut.flush();
+            }
+        }
+    }
+
+    private static Object read(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case TAG_DISH_DATA -> {
+                DishData dishData = new DishData(findDishCard(readVarInt(in)), new AID(in.readUTF(), AID.ISGUID), readVarInt(in));
+                dishData.setWaitingTime(in.readDouble());
+                return dishData;
+            }
+            case TAG_DISH_CARD -> {
+                return findDishCard(readVarInt(in));
+            }
+            case TAG_MENU_DISH -> {
+                int id = readVarInt(in);
+                MenuDish menuDish = menuDishes.get(id);
+                if (menuDish == null) {
+                    throw new InvalidObjectException("Блюдо меню " + id + " отсутствует в каталоге");
+                }
+                return menuDish;
+            }
+            case TAG_OPERATION -> {
+                int type = readVarInt(in);
+                int equipmentType = readVarInt(in);
+                double time = in.readDouble();
+                int asyncPoint = readVarInt(in);
+                int productsCount = readVarInt(in);
+                ArrayList<OperationProduct> products = new ArrayList<>(productsCount);
+                for (int i = 0; i < productsCount; ++i) {
+                    products.add((OperationProduct) read(in, TAG_OPERATION_PRODUCT));
+                }
+                return new Operation(type, equipmentType, time, asyncPoint, products);
+            }
+            case TAG_OPERATION_PRODUCT -> {
+                return new OperationProduct(readVarInt(in), in.readDouble());
+            }
+            case TAG_VISITOR_ORDERED_DISH -> {
+                return new VisitorOrderedDish(readVarInt(in), readVarInt(in));
+            }
+            case TAG_SERIALIZED -> {
+                try {
+                    return new ObjectInputStream(in).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new InvalidClassException(e.getMessage());
+                }
+            }
+            default -> throw new StreamCorruptedException("Неизвестный тег " + tag);
+        }
+    }
+
+    private static DishCard findDishCard(int id) throws InvalidObjectException {
+        DishCard dishCard = dishCards.get(id);
+        if (dishCard == null) {
+            throw new InvalidObjectException("Карточка блюда " + id + " отсутствует в каталоге");
+        }
+        return dishCard;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Некорректное число varint");
+    }
+
+    public static long getReferencesCount() {
+        return referencesCount.get();
+    }
+
+    public static int getPendingReferencesCount() {
+        int count = 0;
+        for (var receiverReferences : references.values()) {
+            count += receiverReferences.size();
+        }
+        return count;
+    }
+
+    public static long getEncodedCount() {
+        return encodedCount.get();
+    }
+
+    public static long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+}
@@ -0,0 +1,132 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import hse.java.kdz.jade.restaurant.types.Product;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Класс индекса продуктов склада.
+ * Продукты сгруппированы по типам: для каждого типа хранятся непустые партии в порядке их следования
+ * на складе и поддерживается суммарный остаток, поэтому проверка наличия не перебирает продукты,
+ * а резервация перебирает только списываемые партии
+ */
+public class ProductInventory {
+    /**
+     * Допустимая погрешность суммарного остатка, накопленная при сложении и вычитании количеств
+     */
+    private static final double QUANTITY_EPSILON = 1e-9;
+    /**
+     * Продукты склада
+     * Ключ - id продукта
+     * Значение - продукт (партия)
+     */
+    private final HashMap<Integer, Product> productsById = new HashMap<>();
+    /**
+     * Порядковый номер продукта на складе
+     * Ключ - id продукта
+     * Значение - порядковый номер
+     */
+    private final HashMap<Integer, Integer> positions = new HashMap<>();
+    /**
+     * Непустые партии продуктов
+     * Ключ - тип продукта
+     * Значение - партии этого типа (ключ - порядковый номер продукта на складе, значение - продукт)
+     */
+    private final HashMap<Integer, TreeMap<Integer, Product>> batchesByType = new HashMap<>();
+    /**
+     * Суммарный остаток продуктов
+     * Ключ - тип продукта
+     * Значение - количество
+     */
+    private final HashMap<Integer, Double> totalQuantities = new HashMap<>();
+
+    public ProductInventory(List<Product> products) {
+        for (int i = 0; i < products.size(); i++) {
+            Product product = products.get(i);
+            productsById.put(product.getId(), product);
+            positions.put(product.getId(), i);
+            if (product.getQuantity() > 0) {
+                batchesByType.computeIfAbsent(product.getType(), k -> new TreeMap<>()).put(i, product);
+                totalQuantities.merge(product.getType(), product.getQuantity(), Double::sum);
+            }
+        }
+    }
+
+    /**
+     * Метод для получения доступного на складе количества продукта заданного типа
+     * @param productType - тип продукта
+     * @return - суммарное количество всех продуктов этого типа
+     */
+    public double getAvailableQuantity(int productType) {
+        return totalQuantities.getOrDefault(productType, 0.0);
+    }
+
+    /**
+     * Метод списывает со склада заданное количество продукта заданного типа,
+     * последовательно опустошая партии этого типа в порядке их следования на складе
+     * @param productType - тип продукта
+     * @param quantity - необходимое количество
+     * @return - списанное количество по продуктам (ключ - продукт, значение - количество)
+     * или null, если на складе недостаточно продукта
+     */
+    public LinkedHashMap<Product, Double> reserve(int productType, double quantity) {
+        if (getAvailableQuantity(productType) < quantity) {
+            return null;
+        }
+        LinkedHashMap<Product, Double> reserved = new LinkedHashMap<>();
+        TreeMap<Integer, Product> batches = batchesByType.get(productType);
+        double remainingQuantity = quantity;
+        while (remainingQuantity > 0 && batches != null && !batches.isEmpty()) {
+            Map.Entry<Integer, Product> batch = batches.firstEntry();
+            Product product = batch.getValue();
+            double takenQuantity = Math.min(product.getQuantity(), remainingQuantity);
+            product.setQuantity(product.getQuantity() - takenQuantity);
+            if (product.getQuantity() <= 0) {
+                batches.remove(batch.getKey());
+            }
+            remainingQuantity -= takenQuantity;
+            reserved.put(product, takenQuantity);
+        }
+        if (remainingQuantity > QUANTITY_EPSILON) {
+            // Суммарный остаток разошелся с партиями из-за погрешности вычислений:
+            // списанное возвращается в партии, а остаток пересчитывается по ним
+            double totalQuantity = 0;
+            for (var reservedProduct : reserved.entrySet()) {
+                Product product = reservedProduct.getKey();
+                product.addQuantity(reservedProduct.getValue());
+                batches.put(positions.get(product.getId()), product);
+            }
+            if (batches != null) {
+                for (var product : batches.values()) {
+                    totalQuantity += product.getQuantity();
+                }
+            }
+            totalQuantities.put(productType, totalQuantity);
+            return null;
+        }
+        double takenQuantity = quantity - Math.max(0, remainingQuantity);
+        totalQuantities.put(productType, Math.max(0, getAvailableQuantity(productType) - takenQuantity));
+        return reserved;
+    }
+
+    /**
+     * Метод возвращает на склад ранее списанное количество продукта
+     * @param productID - id продукта
+     * @param quantity - возвращаемое количество
+     * @return - продукт или null, если продукта с таким id нет на складе
+     */
+    public Product release(int productID, double quantity) {
+        Product product = productsById.get(productID);
+        if (product == null || quantity <= 0) {
+            return product;
+        }
+        product.addQuantity(quantity);
+        batchesByType.computeIfAbsent(product.getType(), k -> new TreeMap<>()).put(positions.get(productID), product);
+        totalQuantities.merge(product.getType(), quantity, Double::sum);
+        return product;
+    }
+}
@@ -0,0 +1,201 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import jade.core.MessageQueue;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_VIRTUAL_CLOCK;
+
+/**
+ * Класс часов симуляции.
+ * Все временные расчеты агентов (дедлайны резерваций и операций, таймеры колеса таймеров,
+ * даты в отчетах) выполняются по этим часам, а не по системным.
+ * В обычном режиме часы совпадают с монотонными часами системы.
+ * В режиме виртуальных часов (USE_VIRTUAL_CLOCK) время симуляции перескакивает к ближайшему
+ * ожидающему таймеру, как только все агенты простаивают (не обмениваются сообщениями).
+ * Поэтому все ожидания агентов по времени выполняются через колесо таймеров (WheelWakerBehaviour,
+ * RestaurantAgent.waitForStateChange, sleep), а не через таймеры JADE и Thread.sleep
+ */
+public class SimulationClock {
+    /**
+     * Время без сообщений между агентами, после которого система считается простаивающей (нс)
+     */
+    private final static long IDLE_THRESHOLD_NANOS = 30_000_000;
+    /**
+     * Момент запуска часов по системным монотонным часам
+     */
+    private final static long startNanos = System.nanoTime();
+    /**
+     * Дата запуска часов
+     */
+    private final static long startMillis = System.currentTimeMillis();
+    /**
+     * Суммарное время, пропущенное часами при перескоках (нс)
+     */
+    private static volatile long skippedNanos = 0;
+    /**
+     * Момент последней активности агентов по системным монотонным часам
+     */
+    private static volatile long lastActivityNanos = System.nanoTime();
+
+    /**
+     * Метод для получения текущего времени симуляции
+     * @return - время в наносекундах (аналог System.nanoTime)
+     */
+    public static long nanoTime() {
+        return System.nanoTime() + skippedNanos;
+    }
+
+    /**
+     * Метод для получения текущей даты симуляции
+     * @return - дата, с учетом всех перескоков часов
+     */
+    public static Date now() {
+        return new Date(startMillis + (nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * Метод перевода часов вперед (только в режиме виртуальных часов)
+     * @param nanos - количество пропускаемых наносекунд
+     */
+    static synchronized void advance(long nanos) {
+        if (USE_VIRTUAL_CLOCK && nanos > 0) {
+            skippedNanos += nanos;
+        }
+    }
+
+    /**
+     * Метод отмечает активность агентов
+     */
+    public static void markActivity() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Метод проверяет, простаивают ли агенты
+     * @return - true, если в режиме виртуальных часов агенты не обменивались сообщениями дольше порога простоя
+     */
+    static boolean isIdle() {
+        return USE_VIRTUAL_CLOCK && System.nanoTime() - lastActivityNanos > IDLE_THRESHOLD_NANOS;
+    }
+
+    /**
+     * Метод для получения суммарного пропущенного часами времени
+     * @return - время в секундах
+     */
+    public static double getSkippedSeconds() {
+        return skippedNanos / 1e9;
+    }
+
+    /**
+     * Метод останавливает вызывающий поток на заданное время по часам симуляции
+     * (в режиме виртуальных часов ожидание завершается раньше, если часы перескочили вперед)
+     * @param millis - количество миллисекунд
+     */
+    public static void sleep(long millis) {
+        CountDownLatch latch = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = TimingWheel.schedule(millis, latch::countDown);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            timeout.cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Класс очереди сообщений агента, отмечающей активность агентов при доставке и чтении сообщений.
+     * Повторяет поведение очереди JADE по умолчанию: сообщения хранятся в порядке поступления,
+     * при переполнении отбрасывается самое старое сообщение (0 - размер не ограничен).
+     * Синхронизацию доступа к очереди выполняет сам агент JADE
+     */
+    public static class ActivityTrackingQueue implements MessageQueue {
+        private final LinkedList<ACLMessage> messages = new LinkedList<>();
+        private int maxSize;
+
+        public ActivityTrackingQueue(int maxSize) {
+            setMaxSize(maxSize);
+        }
+
+        @Override
+        public void addFirst(ACLMessage msg) {
+            markActivity();
+            messages.addFirst(msg);
+        }
+
+        @Override
+        public void addLast(ACLMessage msg) {
+            markActivity();
+            if (maxSize > 0 && messages.size() >= maxSize) {
+                messages.removeFirst();
+            }
+            messages.addLast(msg);
+        }
+
+        @Override
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void setMaxSize(int maxSize) {
+            if (maxSize < 0) {
+                throw new IllegalArgumentException("Invalid MsgQueue size");
+            }
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        @Override
+        public ACLMessage receive(MessageTemplate mt) {
+            List<ACLMessage> received = receive(mt, 1);
+            return received != null ? received.get(0) : null;
+        }
+
+        @Override
+        public List<ACLMessage> receive(MessageTemplate mt, int max) {
+            List<ACLMessage> received = null;
+            Iterator<ACLMessage> iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                ACLMessage msg = iterator.next();
+                if (mt == null || mt.match(msg)) {
+                    iterator.remove();
+                    if (received == null) {
+                        received = new ArrayList<>(Math.max(1, max));
+                    }
+                    received.add(msg);
+                    if (received.size() == max) {
+                        break;
+                    }
+                }
+            }
+            if (received != null) {
+                markActivity();
+            }
+            return received;
+        }
+
+        @Override
+        public void copyTo(jade.util.leap.List list) {
+            for (var msg : messages) {
+                list.add(msg);
+            }
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import hse.java.kdz.jade.restaurant.types.DishCard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_TIME_ESTIMATE_CACHE;
+
+/**
+ * Класс кэша оценок времени приготовления.
+ * Оценки зависят только от снимка времени резервации ресурсов кухни, поэтому каждый снимок получает
+ * номер версии, а все сохраненные оценки относятся к текущей версии и удаляются при её смене.
+ * Оценки цепочек операций хранятся по id карточки блюда и номеру первой операции цепочки,
+ * оценки цепочек блюд - по списку id карточек блюд
+ */
+public class TimeEstimateCache {
+    /**
+     * Количество оценок, взятых из кэша
+     */
+    private final static AtomicLong hits = new AtomicLong();
+    /**
+     * Количество оценок, рассчитанных заново
+     */
+    private final static AtomicLong misses = new AtomicLong();
+    /**
+     * Версия текущего снимка времени резервации ресурсов
+     */
+    private final static AtomicLong version = new AtomicLong();
+    /**
+     * Оценки цепочек операций
+     * Ключ - id карточки блюда (старшие 32 бита), номер первой операции и режим расчета (младший бит)
+     * Значение - рассчитанное время
+     */
+    private final HashMap<Long, Double> operationsTimes = new HashMap<>();
+    /**
+     * Оценки цепочек блюд
+     * Ключ - id карточек блюд в порядке их приготовления
+     * Значение - рассчитанное время
+     */
+    private final HashMap<List<Integer>, Double> dishesTimes = new HashMap<>();
+
+    /**
+     * Метод переводит кэш на новую версию снимка, удаляя все оценки прошлой версии
+     */
+    public void advance() {
+        version.incrementAndGet();
+        operationsTimes.clear();
+        dishesTimes.clear();
+    }
+
+    public static long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Метод возвращает оценку времени цепочки операций карточки блюда, рассчитывая её только при промахе
+     * @param dishCardID - id карточки блюда
+     * @param firstOperation - номер первой операции цепочки в карточке
+     * @param calculateWaitingTime - режим расчета
+     * @param calculation - расчет оценки
+     * @return - оценка времени
+     */
+    public double getOperationsTime(int dishCardID, int firstOperation, boolean calculateWaitingTime, DoubleSupplier calculation) {
+        if (!USE_TIME_ESTIMATE_CACHE) {
+            return calculation.getAsDouble();
+        }
+        long key = ((long) dishCardID << 32) | ((long) firstOperation << 1) | (calculateWaitingTime ? 1 : 0);
+        Double time = operationsTimes.get(key);
+        if (time != null) {
+            hits.incrementAndGet();
+            return time;
+        }
+        misses.incrementAndGet();
+        time = calculation.getAsDouble();
+        operationsTimes.put(key, time);
+        return time;
+    }
+
+    /**
+     * Метод возвращает оценку времени цепочки блюд, рассчитывая её только при промахе
+     * @param dishCards - карточки блюд
+     * @param calculation - расчет оценки
+     * @return - оценка времени
+     */
+    public double getDishesTime(List<DishCard> dishCards, DoubleSupplier calculation) {
+        if (!USE_TIME_ESTIMATE_CACHE) {
+            return calculation.getAsDouble();
+        }
+        ArrayList<Integer> key = new ArrayList<>(dishCards.size());
+        for (var dishCard : dishCards) {
+            key.add(dishCard.getId());
+        }
+        Double time = dishesTimes.get(key);
+        if (time != null) {
+            hits.incrementAndGet();
+            return time;
+        }
+        misses.incrementAndGet();
+        time = calculation.getAsDouble();
+        dishesTimes.put(key, time);
+        return time;
+    }
+
+    public static long getHitsCount() {
+        return hits.get();
+    }
+
+    public static long getMissesCount() {
+        return misses.get();
+    }
+}
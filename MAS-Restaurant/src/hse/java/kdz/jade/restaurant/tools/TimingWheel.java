@@ -0,0 +1,214 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.USE_VIRTUAL_CLOCK;
+
+/**
+ * Класс общего для всей платформы хешированного колеса таймеров.
+ * Отложенные задачи раскладываются по ячейкам колеса в соответствии с моментом срабатывания,
+ * поэтому добавление и отмена таймера выполняются за O(1) независимо от количества ожидающих таймеров.
+ * Колесо обслуживается одним фоновым потоком, который раз в тик обрабатывает очередную ячейку.
+ * Задачи выполняются в потоке колеса, поэтому они должны быть короткими
+ * (для агентов см. WheelWakerBehaviour, которое лишь перезапускает поведение агента)
+ */
+public class TimingWheel {
+    /**
+     * Длительность одного тика колеса (мс)
+     */
+    private final static long TICK_MILLIS = 10;
+    /**
+     * Количество ячеек колеса (степень двойки)
+     */
+    private final static int WHEEL_SIZE = 512;
+    /**
+     * Максимальная пауза потока колеса в режиме виртуальных часов (нс),
+     * определяет, как быстро колесо замечает простой агентов
+     */
+    private final static long VIRTUAL_CLOCK_POLL_NANOS = 5_000_000;
+    /**
+     * Ячейки колеса - двусвязные списки ожидающих таймеров
+     */
+    private final static Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    /**
+     * Момент запуска колеса (по часам симуляции)
+     */
+    private final static long startTime = SimulationClock.nanoTime();
+    /**
+     * Номер очередного обрабатываемого тика
+     */
+    private static long tick = 0;
+    /**
+     * Количество ожидающих таймеров
+     */
+    private static int pendingCount = 0;
+    /**
+     * Количество сработавших таймеров
+     */
+    private final static AtomicLong firedCount = new AtomicLong();
+    /**
+     * Количество отмененных таймеров
+     */
+    private final static AtomicLong cancelledCount = new AtomicLong();
+
+    static {
+        Thread worker = new Thread(TimingWheel::run, "TimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Класс ожидающего таймера
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private int bucket = -1;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Метод отмены таймера. Повторная отмена и отмена сработавшего таймера ни на что не влияют
+         * @return - был ли таймер отменен этим вызовом
+         */
+        public boolean cancel() {
+            synchronized (buckets) {
+                if (bucket < 0) {
+                    return false;
+                }
+                unlink(this);
+            }
+            cancelledCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Метод для планирования задачи
+     * @param delay - задержка в миллисекундах
+     * @param task - задача, выполняемая в потоке колеса по истечении задержки
+     * @return - таймер, который можно отменить
+     */
+    public static Timeout schedule(long delay, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        long deadlineTick = (SimulationClock.nanoTime() - startTime + Math.max(0, delay) * 1_000_000 + TICK_MILLIS * 1_000_000 - 1)
+                / (TICK_MILLIS * 1_000_000);
+        synchronized (buckets) {
+            long target = Math.max(deadlineTick, tick);
+            timeout.remainingRounds = (target - tick) / WHEEL_SIZE;
+            timeout.bucket = (int) (target & (WHEEL_SIZE - 1));
+            timeout.next = buckets[timeout.bucket];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            buckets[timeout.bucket] = timeout;
+            pendingCount++;
+        }
+        return timeout;
+    }
+
+    private static void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pendingCount--;
+    }
+
+    /**
+     * Основной цикл потока колеса: ожидание очередного тика и выполнение истекших задач его ячейки
+     */
+    private static void run() {
+        ArrayList<Runnable> expired = new ArrayList<>();
+        while (true) {
+            long sleepNanos;
+            synchronized (buckets) {
+                sleepNanos = startTime + tick * TICK_MILLIS * 1_000_000 - SimulationClock.nanoTime();
+                if (sleepNanos > 0 && pendingCount > 0 && SimulationClock.isIdle()) {
+                    SimulationClock.advance(startTime + nextExpiringTick() * TICK_MILLIS * 1_000_000 - SimulationClock.nanoTime());
+                    continue;
+                }
+            }
+            if (sleepNanos > 0) {
+                if (USE_VIRTUAL_CLOCK) {
+                    sleepNanos = Math.min(sleepNanos, VIRTUAL_CLOCK_POLL_NANOS);
+                }
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException ignored) {
+                }
+                continue;
+            }
+            synchronized (buckets) {
+                Timeout timeout = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        unlink(timeout);
+                        expired.add(timeout.task);
+                    } else {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+            if (!expired.isEmpty()) {
+                SimulationClock.markActivity();
+            }
+            for (var task : expired) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            firedCount.addAndGet(expired.size());
+            expired.clear();
+        }
+    }
+
+    /**
+     * Метод поиска ближайшего тика, на котором сработает хотя бы один таймер.
+     * Просматривает не более одного оборота колеса
+     * @return - номер тика
+     */
+    private static long nextExpiringTick() {
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            Timeout timeout = buckets[(int) ((tick + i) & (WHEEL_SIZE - 1))];
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    return tick + i;
+                }
+                timeout = timeout.next;
+            }
+        }
+        return tick + WHEEL_SIZE;
+    }
+
+    public static int getPendingCount() {
+        synchronized (buckets) {
+            return pendingCount;
+        }
+    }
+
+    public static long getFiredCount() {
+        return firedCount.get();
+    }
+
+    public static long getCancelledCount() {
+        return cancelledCount.get();
+    }
+}
@@ -0,0 +1,70 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static hse.java.kdz.jade.restaurant.tools.AgentTools.WAREHOUSE_SHARDS_COUNT;
+
+/**
+ * Класс маршрутизации запросов к складу.
+ * Склад разделен на WAREHOUSE_SHARDS_COUNT агентов (шардов), каждому из которых принадлежит
+ * часть типов продуктов по хешу типа. Запрос, затрагивающий несколько типов продуктов,
+ * разбивается на части по шардам, а ответы шардов собираются вызывающим агентом.
+ * Количества продуктов передаются в сообщениях в формате 'тип продукта=количество' через запятую
+ */
+public class WarehouseRouter {
+    /**
+     * Метод для получения номера шарда склада, которому принадлежит тип продукта
+     * @param productType - тип продукта
+     * @return - номер шарда
+     */
+    public static int shardOf(int productType) {
+        return Math.floorMod(Integer.hashCode(productType), Math.max(1, WAREHOUSE_SHARDS_COUNT));
+    }
+
+    /**
+     * Метод разбивает количества продуктов по шардам склада
+     * @param quantities - количества продуктов (ключ - тип продукта, значение - количество)
+     * @return - количества продуктов по шардам (ключ - номер шарда)
+     */
+    public static LinkedHashMap<Integer, LinkedHashMap<Integer, Double>> partition(Map<Integer, Double> quantities) {
+        LinkedHashMap<Integer, LinkedHashMap<Integer, Double>> partitions = new LinkedHashMap<>();
+        for (var entry : quantities.entrySet()) {
+            partitions.computeIfAbsent(shardOf(entry.getKey()), k -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        return partitions;
+    }
+
+    /**
+     * Метод форматирует количества продуктов для передачи в сообщении
+     * @param quantities - количества продуктов (ключ - тип продукта, значение - количество)
+     * @return - строка в формате 'тип продукта=количество' через запятую
+     */
+    public static String format(Map<Integer, Double> quantities) {
+        StringBuilder result = new StringBuilder();
+        for (var entry : quantities.entrySet()) {
+            if (result.length() > 0) {
+                result.append(",");
+            }
+            result.append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Метод разбирает количества продуктов из сообщения
+     * @param content - строка в формате 'тип продукта=количество' через запятую
+     * @return - количества продуктов (ключ - тип продукта, значение - количество)
+     */
+    public static LinkedHashMap<Integer, Double> parse(String content) {
+        LinkedHashMap<Integer, Double> quantities = new LinkedHashMap<>();
+        if (content == null || content.isEmpty()) {
+            return quantities;
+        }
+        for (var quantity : content.split(",")) {
+            String[] parts = quantity.split("=");
+            quantities.put(Integer.parseInt(parts[0]), Double.parseDouble(parts[1]));
+        }
+        return quantities;
+    }
+}
@@ -0,0 +1,73 @@
+package hse.java.kdz.jade.restaurant.tools;
+
+import jade.core.Agent;
+import jade.core.behaviours.SimpleBehaviour;
+
+/**
+ * Класс поведения, аналогичного WakerBehaviour, но использующего общее колесо таймеров (TimingWheel)
+ * вместо таймеров JADE каждого агента.
+ * Поведение однократно вызывает onWake() в потоке агента спустя заданное время после своего запуска
+ */
+public abstract class WheelWakerBehaviour extends SimpleBehaviour {
+    /**
+     * Задержка до пробуждения (мс)
+     */
+    private final long delay;
+    /**
+     * Таймер в колесе таймеров
+     */
+    private TimingWheel.Timeout timeout;
+    /**
+     * Истекла ли задержка
+     */
+    private volatile boolean expired = false;
+    private boolean finished = false;
+
+    public WheelWakerBehaviour(Agent a, long delay) {
+        super(a);
+        this.delay = delay;
+    }
+
+    @Override
+    public void onStart() {
+        timeout = TimingWheel.schedule(delay, () -> {
+            expired = true;
+            restart();
+        });
+    }
+
+    @Override
+    public void action() {
+        if (expired) {
+            finished = true;
+            onWake();
+            return;
+        }
+        block();
+        // Таймер мог сработать между проверкой и блокировкой
+        if (expired) {
+            restart();
+        }
+    }
+
+    @Override
+    public boolean done() {
+        return finished;
+    }
+
+    /**
+     * Метод отмены пробуждения. Поведение завершается без вызова onWake()
+     */
+    public void stop() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        finished = true;
+        restart();
+    }
+
+    /**
+     * Метод, вызываемый по истечении задержки
+     */
+    protected abstract void onWake();
+}
@@ -40,6 +40,12 @@ public class Operation implements Serializable {
         return time;
     }
 
+    /**
+     * Точка асинхронности операции.
+     * Подряд идущие операции карточки с одной и той же ненулевой точкой асинхронности выполняются параллельно,
+     * а следующая за ними операция начинается только после завершения их всех.
+     * Операция с нулевой точкой асинхронности выполняется после завершения всех предыдущих операций
+     */
     public int getAsyncPoint() {
         return asyncPoint;
     }
@@ -0,0 +1,58 @@
+package hse.java.kdz.jade.restaurant.types;
+
+import jade.core.AID;
+
+import java.io.Serializable;
+
+/**
+ * Вспомогательный класс для межагентного общения посредством его объектов.
+ * Описывает задание на выполнение одной операции процесса
+ */
+public final class OperationTask implements Serializable {
+    private final int operationID;
+    private final Operation operation;
+    private final int processID;
+    private final int orderedDishID;
+    private final int dishCardID;
+    private final int operationIndex;
+    private final AID processAgent;
+
+    public OperationTask(int operationID, Operation operation, int processID, int orderedDishID,
+                         int dishCardID, int operationIndex, AID processAgent) {
+        this.operationID = operationID;
+        this.operation = operation;
+        this.processID = processID;
+        this.orderedDishID = orderedDishID;
+        this.dishCardID = dishCardID;
+        this.operationIndex = operationIndex;
+        this.processAgent = processAgent;
+    }
+
+    public int getOperationID() {
+        return operationID;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public int getProcessID() {
+        return processID;
+    }
+
+    public int getOrderedDishID() {
+        return orderedDishID;
+    }
+
+    public int getDishCardID() {
+        return dishCardID;
+    }
+
+    public int getOperationIndex() {
+        return operationIndex;
+    }
+
+    public AID getProcessAgent() {
+        return processAgent;
+    }
+}
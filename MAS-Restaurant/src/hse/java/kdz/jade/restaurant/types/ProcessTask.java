@@ -0,0 +1,46 @@
+package hse.java.kdz.jade.restaurant.types;
+
+import jade.core.AID;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Вспомогательный класс для межагентного общения посредством его объектов.
+ * Описывает задание на выполнение процесса приготовления блюда
+ */
+public final class ProcessTask implements Serializable {
+    private final int processID;
+    private final int orderedDishID;
+    private final int dishCardID;
+    private final ArrayList<Operation> operations;
+    private final AID dishAgent;
+
+    public ProcessTask(int processID, int orderedDishID, int dishCardID, ArrayList<Operation> operations, AID dishAgent) {
+        this.processID = processID;
+        this.orderedDishID = orderedDishID;
+        this.dishCardID = dishCardID;
+        this.operations = operations;
+        this.dishAgent = dishAgent;
+    }
+
+    public int getProcessID() {
+        return processID;
+    }
+
+    public int getOrderedDishID() {
+        return orderedDishID;
+    }
+
+    public int getDishCardID() {
+        return dishCardID;
+    }
+
+    public ArrayList<Operation> getOperations() {
+        return operations;
+    }
+
+    public AID getDishAgent() {
+        return dishAgent;
+    }
+}